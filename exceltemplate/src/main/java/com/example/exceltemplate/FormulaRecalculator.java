@@ -0,0 +1,197 @@
+package com.example.exceltemplate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * データセクションで値を書き込んだセルに依存するテンプレートの数式だけを再計算します。
+ *
+ * <p>
+ * {@link TemplateFormulaIndex} を基に、書き込んだセルを参照する数式と、その数式を間接的に参照する数式を求め、
+ * それらの数式だけを評価してキャッシュされた計算結果を更新します。
+ * それ以外の数式は、テンプレートに保存されていた計算結果のままとします。
+ * </p>
+ *
+ * <p>
+ * 複製したシートは、複製元のテンプレートのシートの数式を持つものとして扱います。
+ * シート名を指定しない参照は複製したシート自身を、シート名を指定した参照はテンプレートのシートを参照します。
+ * </p>
+ */
+public class FormulaRecalculator {
+    private final TemplateFormulaIndex formulaIndex;
+    /** テンプレートのシート名 → テンプレートのシート */
+    private final HashMap<String, XSSFSheet> templateSheets = new HashMap<>();
+    /** シート（複製したシートを含む） → 元になったテンプレートのシート名 */
+    private final IdentityHashMap<XSSFSheet, String> templateSheetNames = new IdentityHashMap<>();
+
+    /**
+     * @param formulaIndex テンプレートの数式の索引
+     * @param workbook     テンプレートを読み込んだ直後のワークブック
+     */
+    public FormulaRecalculator(TemplateFormulaIndex formulaIndex, XSSFWorkbook workbook) {
+        this.formulaIndex = formulaIndex;
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            XSSFSheet sheet = workbook.getSheetAt(i);
+            templateSheets.put(sheet.getSheetName(), sheet);
+            templateSheetNames.put(sheet, sheet.getSheetName());
+        }
+    }
+
+    /**
+     * 複製したシートを、複製元と同じテンプレートのシートとして登録します。
+     * 複製元に書き込んだ値は複製にも含まれるため、書き込んだセルも複製したシートに記録します。
+     *
+     * @param clonedSheets 複製したシート → 複製元のシート（複製した順）
+     * @param writtenCells 書き込んだセルのセット
+     */
+    public void addClonedSheets(Map<XSSFSheet, XSSFSheet> clonedSheets, WrittenCellSet writtenCells) {
+        for (Map.Entry<XSSFSheet, XSSFSheet> entry : clonedSheets.entrySet()) {
+            String templateSheetName = templateSheetNames.get(entry.getValue());
+            if (templateSheetName != null) {
+                templateSheetNames.put(entry.getKey(), templateSheetName);
+            }
+            writtenCells.copy(entry.getValue(), entry.getKey());
+        }
+    }
+
+    /**
+     * 書き込んだセルに依存する数式を再計算します。
+     *
+     * @param workbook     再計算するワークブック
+     * @param writtenCells 書き込んだセルのセット
+     * @return 再計算した数式の数
+     */
+    public int recalculate(XSSFWorkbook workbook, WrittenCellSet writtenCells) {
+        return recalculate(workbook, writtenCells, new ReportCancellationToken());
+    }
+
+    /**
+     * 期限と取り消しを確認しながら、書き込んだセルに依存する数式を再計算します。
+     * 取り消しは、影響を受ける数式をたどる間と、数式を1つ評価するたびに確認します。
+     *
+     * @param workbook          再計算するワークブック
+     * @param writtenCells      書き込んだセルのセット
+     * @param cancellationToken 期限と取り消しのトークン
+     * @return 再計算した数式の数
+     * @throws ReportCancelledException 取り消された場合、または期限を過ぎた場合
+     */
+    public int recalculate(XSSFWorkbook workbook, WrittenCellSet writtenCells,
+            ReportCancellationToken cancellationToken) {
+        // テンプレートのシート名ごとに、現在のワークブックに存在するシートを求める
+        HashMap<String, List<XSSFSheet>> sheetInstances = new HashMap<>();
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            XSSFSheet sheet = workbook.getSheetAt(i);
+            String templateSheetName = templateSheetNames.get(sheet);
+            if (templateSheetName != null) {
+                sheetInstances.computeIfAbsent(templateSheetName, key -> new ArrayList<>()).add(sheet);
+            }
+        }
+
+        IdentityHashMap<XSSFSheet, BitSet> affectedFormulas = new IdentityHashMap<>();
+        ArrayDeque<XSSFSheet> queuedSheets = new ArrayDeque<>();
+        ArrayDeque<Integer> queuedFormulas = new ArrayDeque<>();
+        for (int formulaNo = 0; formulaNo < formulaIndex.size(); formulaNo++) {
+            cancellationToken.throwIfCancelled();
+            TemplateFormulaIndex.Formula formula = formulaIndex.getFormula(formulaNo);
+            for (XSSFSheet sheet : sheetInstances.getOrDefault(formula.sheetName, List.of())) {
+                if (formula.alwaysAffected || isPrecedentWritten(workbook, writtenCells, formula, sheet)) {
+                    markAffected(affectedFormulas, queuedSheets, queuedFormulas, sheet, formulaNo);
+                }
+            }
+        }
+
+        // 影響を受けた数式を参照する数式をたどる
+        while (!queuedSheets.isEmpty()) {
+            cancellationToken.throwIfCancelled();
+            XSSFSheet sheet = queuedSheets.poll();
+            TemplateFormulaIndex.Formula formula = formulaIndex.getFormula(queuedFormulas.poll());
+            for (int dependent : formula.sameSheetDependents) {
+                markAffected(affectedFormulas, queuedSheets, queuedFormulas, sheet, dependent);
+            }
+            // シート名を指定した参照は、テンプレートのシートだけを参照する
+            if (formula.otherSheetDependents.length == 0 || templateSheets.get(formula.sheetName) != sheet) {
+                continue;
+            }
+            for (int dependent : formula.otherSheetDependents) {
+                String dependentSheetName = formulaIndex.getFormula(dependent).sheetName;
+                for (XSSFSheet dependentSheet : sheetInstances.getOrDefault(dependentSheetName, List.of())) {
+                    markAffected(affectedFormulas, queuedSheets, queuedFormulas, dependentSheet, dependent);
+                }
+            }
+        }
+
+        // 評価器は参照先の数式も評価するため、評価の順序は問わない
+        FormulaEvaluator evaluator = workbook.getCreationHelper().createFormulaEvaluator();
+        int recalculatedCount = 0;
+        for (Map.Entry<XSSFSheet, BitSet> entry : affectedFormulas.entrySet()) {
+            XSSFSheet sheet = entry.getKey();
+            BitSet formulaNos = entry.getValue();
+            for (int formulaNo = formulaNos.nextSetBit(0); formulaNo >= 0;
+                    formulaNo = formulaNos.nextSetBit(formulaNo + 1)) {
+                cancellationToken.throwIfCancelled();
+                TemplateFormulaIndex.Formula formula = formulaIndex.getFormula(formulaNo);
+                if (writtenCells.contains(sheet, formula.rowIndex, formula.columnIndex)) {
+                    // 値を書き込んだセルは、書き込んだ値を優先する
+                    continue;
+                }
+                XSSFRow row = sheet.getRow(formula.rowIndex);
+                XSSFCell cell = row == null ? null : row.getCell(formula.columnIndex);
+                if (cell == null || cell.getCellType() != CellType.FORMULA) {
+                    continue;
+                }
+                try {
+                    evaluator.evaluateFormulaCell(cell);
+                    recalculatedCount++;
+                } catch (RuntimeException e) {
+                    // POIが対応していない関数などは、テンプレートに保存されていた計算結果のままとする
+                }
+            }
+        }
+        return recalculatedCount;
+    }
+
+    /**
+     * 数式が参照するセル範囲に、値を書き込んだセルがあるかを判定します。
+     */
+    private boolean isPrecedentWritten(XSSFWorkbook workbook, WrittenCellSet writtenCells,
+            TemplateFormulaIndex.Formula formula, XSSFSheet sheet) {
+        for (TemplateFormulaIndex.Precedent precedent : formula.precedents) {
+            XSSFSheet precedentSheet = sheet;
+            if (precedent.sheetName != null) {
+                precedentSheet = templateSheets.get(precedent.sheetName);
+                if (workbook.getSheetIndex(precedentSheet) < 0) {
+                    // 削除されたシートへの参照
+                    continue;
+                }
+            }
+            if (writtenCells.intersects(precedentSheet, precedent.firstRow, precedent.lastRow,
+                    precedent.firstColumn, precedent.lastColumn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void markAffected(IdentityHashMap<XSSFSheet, BitSet> affectedFormulas,
+            ArrayDeque<XSSFSheet> queuedSheets, ArrayDeque<Integer> queuedFormulas, XSSFSheet sheet,
+            int formulaNo) {
+        BitSet formulaNos = affectedFormulas.computeIfAbsent(sheet, key -> new BitSet());
+        if (!formulaNos.get(formulaNo)) {
+            formulaNos.set(formulaNo);
+            queuedSheets.add(sheet);
+            queuedFormulas.add(formulaNo);
+        }
+    }
+}
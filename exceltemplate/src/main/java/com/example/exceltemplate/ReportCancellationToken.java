@@ -0,0 +1,80 @@
+package com.example.exceltemplate;
+
+import java.time.Duration;
+
+/**
+ * 帳票作成の期限と取り消しを、処理中のスレッドに伝えるトークンです。
+ *
+ * <p>
+ * 帳票作成の処理は、データ行やデータセクションの区切り、Excelファイルの書き込み中に
+ * {@link #throwIfCancelled()} を呼び出し、取り消された場合や期限を過ぎた場合は協調的に処理を中断します。
+ * トークンは複数のスレッドから参照できます。
+ * </p>
+ */
+public class ReportCancellationToken {
+    private final long deadlineNanos;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled;
+
+    /**
+     * 期限の無いトークンを作成します。
+     */
+    public ReportCancellationToken() {
+        this.deadlineNanos = 0;
+        this.hasDeadline = false;
+    }
+
+    private ReportCancellationToken(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        this.hasDeadline = true;
+    }
+
+    /**
+     * 現在から指定された時間が経過した時点を期限とするトークンを作成します。
+     *
+     * @param timeout 期限までの時間
+     * @return トークン
+     */
+    public static ReportCancellationToken withTimeout(Duration timeout) {
+        return new ReportCancellationToken(System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * 帳票作成を取り消します。処理中の場合は、次に取り消しを確認した時点で中断します。
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * 取り消されたかを判定します。
+     *
+     * @return {@link #cancel()} が呼び出された場合はtrue
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 期限を過ぎたかを判定します。
+     *
+     * @return 期限があり、期限を過ぎた場合はtrue
+     */
+    public boolean isTimedOut() {
+        return hasDeadline && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * 取り消された場合、または期限を過ぎた場合に例外をスローします。
+     *
+     * @throws ReportCancelledException 取り消された場合、または期限を過ぎた場合
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new ReportCancelledException(false);
+        }
+        if (isTimedOut()) {
+            throw new ReportCancelledException(true);
+        }
+    }
+}
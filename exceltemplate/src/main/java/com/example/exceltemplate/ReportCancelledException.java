@@ -0,0 +1,25 @@
+package com.example.exceltemplate;
+
+/**
+ * 帳票作成が取り消された場合、または期限を過ぎた場合にスローされる例外です。
+ */
+public class ReportCancelledException extends RuntimeException {
+    private final boolean timedOut;
+
+    /**
+     * @param timedOut 期限を過ぎた場合はtrue、取り消された場合はfalse
+     */
+    public ReportCancelledException(boolean timedOut) {
+        super(timedOut ? "帳票作成が期限を過ぎたため中断しました" : "帳票作成が取り消されたため中断しました");
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * 期限を過ぎたために中断したかを返します。
+     *
+     * @return 期限を過ぎた場合はtrue、取り消された場合はfalse
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+}
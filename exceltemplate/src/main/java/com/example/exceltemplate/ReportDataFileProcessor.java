@@ -16,4 +16,10 @@ public class ReportDataFileProcessor {
     private int mode;
     private XSSFWorkbook workbook;
     private HashMap<String, ReportFormatField> reportFormatFieldMap;
+    private SheetOperationPlan sheetOperationPlan;
+    private ReportShardWriter reportShardWriter;
+    private SheetFillQueue sheetFillQueue;
+    private WrittenCellSet writtenCellSet;
+    private FormulaRecalculator formulaRecalculator;
+    private ReportCancellationToken cancellationToken;
 }
@@ -14,6 +14,36 @@ public class ReportFormatField {
     private String fieldName;
     private String location;
     private String formulaString;
+    /** 並べ替えのキー番号（1が最上位のキー）。0はキーではない */
+    private int keyNum;
+    /** キーを降順に並べ替える */
+    private boolean descending;
+    /** 集計レコード名。指定されたフィールドは合計を集計行に出力する */
+    private String totalRecName;
+    /** グループ内で同じ値が続く場合、2行目以降の値を出力しない */
+    private boolean groupSuppress;
+    /** 値が直前の明細行と同じ場合、明細行を出力しない */
+    private boolean suppressLineOnDuplicated;
+    /** グループが変わるたびに合計をクリアする（指定しない場合は累計） */
+    private boolean clearAccumulateCount;
+
+    /**
+     * 集計フィールド（合計を集計行に出力するフィールド）かどうかを返します。
+     *
+     * @return 集計レコード名が指定されている場合はtrue
+     */
+    public boolean isTotalField() {
+        return totalRecName != null && !totalRecName.isEmpty();
+    }
+
+    /**
+     * 明細行の並べ替え、グループ化、集計、重複の抑制のいずれかが指定されているかを返します。
+     *
+     * @return いずれかが指定されている場合はtrue
+     */
+    public boolean isListControlled() {
+        return keyNum > 0 || isTotalField() || groupSuppress || suppressLineOnDuplicated;
+    }
 
     public String execFormula(String targetString) {
         if (formulaString == null || formulaString.isEmpty()) {
@@ -0,0 +1,18 @@
+package com.example.exceltemplate;
+
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * {@link ReportListWriter} が作成した明細行と集計行の出力先です。
+ */
+public interface ReportLineSink {
+
+    /**
+     * 1行分（明細行または集計行）のセルの値を出力します。
+     *
+     * @param lineNo         データセクション内の行番号（0から始まる）
+     * @param cellReferences フィールドごとの1行目の出力位置
+     * @param values         フィールドごとの値。{@link String} または {@link Double}、出力しない場合はnull
+     */
+    void writeLine(int lineNo, CellReference[] cellReferences, Object[] values);
+}
@@ -0,0 +1,307 @@
+package com.example.exceltemplate;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+
+/**
+ * 並べ替え、グループ化、集計、重複の抑制が指定されたデータセクションを、明細行としてシートに出力します。
+ *
+ * <p>
+ * 様式定義のフィールドの出力位置（strComment）は1行目の明細行の位置を表し、
+ * 2行目以降の明細行と集計行は1行ずつ下の行に出力します。各属性の扱いは以下のとおりです。
+ * </p>
+ * <ul>
+ * <li><code>keyNum</code>: 1以上の場合は並べ替えのキーとし、番号が小さいほど上位のキーとします。
+ * キーの値が変わった位置をグループの区切りとします。</li>
+ * <li><code>isDescending</code>: キーを降順に並べ替えます。</li>
+ * <li><code>strTotalRecName</code>: 指定されたフィールドを集計フィールドとし、値の合計をグループの区切りごとに
+ * 集計行として出力します。集計行には、区切りとなったキーとそれより上位のキーの値も出力します。
+ * データセクションの最後には、すべての明細の合計を総計行として出力します。
+ * 合計は数値として出力しますが、doubleで正確に表せない合計（2^53を超える整数など）は、
+ * 精度を失わないよう文字列として出力します。</li>
+ * <li><code>clearAccumulateCount</code>: 集計フィールドの合計を、グループの区切りごとにクリアします。
+ * 指定しない場合は、データセクションの先頭からの累計を出力します。</li>
+ * <li><code>groupSuppress</code>: 同じグループ内で直前の明細と同じ値の場合、値を出力しません。
+ * キーのフィールドはそのキーのグループ、それ以外のフィールドは最下位のキーのグループを対象とします。</li>
+ * <li><code>suppressLineOnDuplicated</code>: 指定されたすべてのフィールドの値が、同じグループ内の直前の明細と
+ * 同じ場合、明細行を出力しません（集計には含めます）。</li>
+ * </ul>
+ */
+public class ReportListWriter {
+    /** データ行の列番号（ヘッダ行での位置）。様式定義に存在するフィールドのみ */
+    private final int[] dataColumns;
+    private final ReportFormatField[] fields;
+    private final CellReference[] cellReferences;
+    /** フィールドごとのキーのレベル（0が最上位）。キーではない場合は-1 */
+    private final int[] keyLevels;
+    private final int levelCount;
+    private final int[] keyColumns;
+    private final boolean[] descending;
+    private final boolean hasTotalField;
+
+    private ReportListWriter(int[] dataColumns, ReportFormatField[] fields) {
+        this.dataColumns = dataColumns;
+        this.fields = fields;
+        this.cellReferences = new CellReference[fields.length];
+
+        // キー番号の昇順に、キーのレベルを割り当てる
+        TreeSet<Integer> keyNums = new TreeSet<>();
+        boolean hasTotalField = false;
+        for (int i = 0; i < fields.length; i++) {
+            cellReferences[i] = new CellReference(fields[i].getLocation());
+            if (fields[i].getKeyNum() > 0) {
+                keyNums.add(fields[i].getKeyNum());
+            }
+            hasTotalField |= fields[i].isTotalField();
+        }
+        this.hasTotalField = hasTotalField;
+        this.levelCount = keyNums.size();
+        ArrayList<Integer> keyNumList = new ArrayList<>(keyNums);
+        this.keyLevels = new int[fields.length];
+        ArrayList<Integer> keyColumnList = new ArrayList<>();
+        for (int level = 0; level < levelCount; level++) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].getKeyNum() == keyNumList.get(level)) {
+                    keyColumnList.add(i);
+                }
+            }
+        }
+        this.keyColumns = new int[keyColumnList.size()];
+        this.descending = new boolean[keyColumnList.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = keyColumnList.get(i);
+            descending[i] = fields[keyColumns[i]].isDescending();
+        }
+        for (int i = 0; i < fields.length; i++) {
+            keyLevels[i] = fields[i].getKeyNum() > 0 ? keyNumList.indexOf(fields[i].getKeyNum()) : -1;
+        }
+    }
+
+    /**
+     * データセクションのヘッダ行から、明細行の出力を作成します。
+     *
+     * @param reportFormatFieldMap 様式定義フィールドのマップ
+     * @param header               CSVヘッダ行
+     * @return 並べ替え、グループ化、集計、重複の抑制のいずれかが指定されたフィールドがある場合は明細行の出力。
+     *         無い場合はnull
+     */
+    public static ReportListWriter create(Map<String, ReportFormatField> reportFormatFieldMap, String[] header) {
+        ArrayList<Integer> dataColumnList = new ArrayList<>();
+        ArrayList<ReportFormatField> fieldList = new ArrayList<>();
+        boolean isListControlled = false;
+        for (int i = 0; i < header.length; i++) {
+            ReportFormatField reportFormatField = reportFormatFieldMap.get(header[i]);
+            if (reportFormatField != null) {
+                dataColumnList.add(i);
+                fieldList.add(reportFormatField);
+                isListControlled |= reportFormatField.isListControlled();
+            }
+        }
+        if (!isListControlled) {
+            return null;
+        }
+        int[] dataColumns = new int[dataColumnList.size()];
+        for (int i = 0; i < dataColumns.length; i++) {
+            dataColumns[i] = dataColumnList.get(i);
+        }
+        return new ReportListWriter(dataColumns, fieldList.toArray(new ReportFormatField[0]));
+    }
+
+    /**
+     * CSVデータ行から、様式定義に存在するフィールドの値を取り出します。
+     *
+     * @param data CSVデータ行
+     * @return フィールドごとの値（{@link ReportRecordStore} に追加するレコード）
+     */
+    public String[] selectValues(String[] data) {
+        String[] values = new String[dataColumns.length];
+        for (int i = 0; i < dataColumns.length; i++) {
+            values[i] = dataColumns[i] < data.length ? data[dataColumns[i]] : "";
+        }
+        return values;
+    }
+
+    /**
+     * キーの指定に従って並べ替えるレコードストアを作成します。
+     *
+     * @param spillThresholdBytes メモリ上に保持するレコードの推定メモリ使用量の上限（バイト）
+     * @return レコードストア
+     */
+    public ReportRecordStore createRecordStore(long spillThresholdBytes) {
+        return createRecordStore(spillThresholdBytes, null);
+    }
+
+    /**
+     * キーの指定に従って並べ替えるレコードストアを、一時ファイルを作成するディレクトリを指定して作成します。
+     *
+     * @param spillThresholdBytes メモリ上に保持するレコードの推定メモリ使用量の上限（バイト）
+     * @param spillDirectory      一時ファイルを作成するディレクトリ。nullの場合はシステムの一時ディレクトリ
+     * @return レコードストア
+     */
+    public ReportRecordStore createRecordStore(long spillThresholdBytes, Path spillDirectory) {
+        return new ReportRecordStore(fields.length, keyColumns, descending, spillThresholdBytes, spillDirectory);
+    }
+
+    /**
+     * 並べ替え済みのレコードを、明細行と集計行としてシートに出力します。
+     *
+     * @param records {@link ReportRecordStore#sortedIterator()} で取り出したレコード
+     * @param sheet   出力先のシート
+     */
+    public void write(Iterator<String[]> records, XSSFSheet sheet) {
+        write(records, new SheetLineSink(sheet));
+    }
+
+    /**
+     * 並べ替え済みのレコードを、明細行と集計行として出力先に出力します。
+     *
+     * @param records {@link ReportRecordStore#sortedIterator()} で取り出したレコード
+     * @param sink    明細行と集計行の出力先
+     */
+    public void write(Iterator<String[]> records, ReportLineSink sink) {
+        // 合計はキーのレベルごと、最後の要素は総計
+        BigDecimal[][] totals = new BigDecimal[levelCount + 1][fields.length];
+        int lineNo = 0;
+        String[] previous = null;
+        while (records.hasNext()) {
+            String[] record = records.next();
+            int breakLevel = previous == null ? levelCount : findBreakLevel(previous, record);
+            if (breakLevel < levelCount) {
+                // 下位のキーから順に、区切りとなったキーまでの集計行を出力する
+                for (int level = levelCount - 1; level >= breakLevel; level--) {
+                    lineNo = writeTotalLine(sink, lineNo, previous, totals, level);
+                }
+            }
+            accumulate(totals, record);
+
+            if (previous == null || breakLevel < levelCount || !isDuplicatedLine(previous, record)) {
+                Object[] values = new Object[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    if (previous != null && fields[i].isGroupSuppress()
+                            && breakLevel > getGroupLevel(i) && record[i].equals(previous[i])) {
+                        continue;
+                    }
+                    values[i] = record[i];
+                }
+                sink.writeLine(lineNo, cellReferences, values);
+                lineNo++;
+            }
+            previous = record;
+        }
+
+        if (previous != null) {
+            for (int level = levelCount - 1; level >= 0; level--) {
+                lineNo = writeTotalLine(sink, lineNo, previous, totals, level);
+            }
+            writeTotalLine(sink, lineNo, null, totals, levelCount);
+        }
+    }
+
+    /**
+     * 値が変わった最上位のキーのレベルを返します。キーの値がすべて同じ場合は {@code levelCount} を返します。
+     */
+    private int findBreakLevel(String[] previous, String[] record) {
+        int breakLevel = levelCount;
+        for (int keyColumn : keyColumns) {
+            if (!previous[keyColumn].equals(record[keyColumn])) {
+                breakLevel = Math.min(breakLevel, keyLevels[keyColumn]);
+            }
+        }
+        return breakLevel;
+    }
+
+    /**
+     * groupSuppressの対象とするグループのレベルを返します。
+     * キーのフィールドはそのキーのレベル、それ以外のフィールドは最下位のキーのレベルです。
+     */
+    private int getGroupLevel(int fieldIndex) {
+        return keyLevels[fieldIndex] >= 0 ? keyLevels[fieldIndex] : levelCount - 1;
+    }
+
+    private boolean isDuplicatedLine(String[] previous, String[] record) {
+        boolean hasSuppressField = false;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].isSuppressLineOnDuplicated()) {
+                hasSuppressField = true;
+                if (!record[i].equals(previous[i])) {
+                    return false;
+                }
+            }
+        }
+        return hasSuppressField;
+    }
+
+    private void accumulate(BigDecimal[][] totals, String[] record) {
+        for (int i = 0; i < fields.length; i++) {
+            if (!fields[i].isTotalField()) {
+                continue;
+            }
+            BigDecimal value = parseDecimal(record[i]);
+            if (value == null) {
+                continue;
+            }
+            for (BigDecimal[] levelTotals : totals) {
+                levelTotals[i] = levelTotals[i] == null ? value : levelTotals[i].add(value);
+            }
+        }
+    }
+
+    /**
+     * 集計行を出力し、次の行番号を返します。集計フィールドが無い場合は出力しません。
+     *
+     * @param keyRecord 集計行に出力するキーの値を含むレコード。総計行の場合はnull
+     */
+    private int writeTotalLine(ReportLineSink sink, int lineNo, String[] keyRecord, BigDecimal[][] totals,
+            int level) {
+        if (!hasTotalField) {
+            return lineNo;
+        }
+        BigDecimal[] levelTotals = totals[level];
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].isTotalField()) {
+                if (levelTotals[i] != null) {
+                    values[i] = toCellValue(levelTotals[i]);
+                }
+                if (fields[i].isClearAccumulateCount()) {
+                    levelTotals[i] = null;
+                }
+            } else if (keyRecord != null && keyLevels[i] >= 0 && keyLevels[i] <= level) {
+                values[i] = keyRecord[i];
+            }
+        }
+        sink.writeLine(lineNo, cellReferences, values);
+        return lineNo + 1;
+    }
+
+    /**
+     * 合計を出力する値に変換します。doubleに変換して値が変わる場合は、正確な値の文字列を返します。
+     */
+    private static Object toCellValue(BigDecimal total) {
+        double value = total.doubleValue();
+        if (!Double.isInfinite(value) && BigDecimal.valueOf(value).compareTo(total) == 0) {
+            return value;
+        }
+        return total.toPlainString();
+    }
+
+    private static BigDecimal parseDecimal(String value) {
+        String trimmed = value.replace(",", "").trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        try {
+            return new BigDecimal(trimmed);
+        } catch (NumberFormatException e) {
+            // 数値以外の値は集計しない
+            return null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.exceltemplate;
+
+import lombok.Getter;
+
+/**
+ * {@link ReportScheduler} に投入する帳票作成ジョブの優先度クラスです。
+ *
+ * <p>
+ * 重みは重み付き公平キューイングで各クラスに割り当てる処理量の比率を表し、
+ * 例えば INTERACTIVE は BATCH の8倍のデータ量を同じ時間で処理できます。
+ * </p>
+ */
+@Getter
+public enum ReportPriority {
+    /** 画面から要求される単票など、利用者が結果を待っている帳票 */
+    INTERACTIVE(8),
+    /** 通常の帳票 */
+    NORMAL(4),
+    /** 夜間バッチなどの大量帳票 */
+    BATCH(1);
+
+    private final int weight;
+
+    ReportPriority(int weight) {
+        this.weight = weight;
+    }
+}
@@ -0,0 +1,553 @@
+package com.example.exceltemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * データセクションのレコードを列ごとに保持し、キー項目の順に並べ替えて取り出すためのストアです。
+ *
+ * <p>
+ * 各列は、値がすべて整数の間は long 配列で保持し、整数以外の値が現れた時点で
+ * 辞書（値の一覧）への番号を int 配列で保持する形式に切り替えます。
+ * 空文字列はどちらの形式でもビットセットで保持します。
+ * </p>
+ *
+ * <p>
+ * 保持しているレコードの推定メモリ使用量が閾値を超えた場合は、その時点のレコードを並べ替えて
+ * 一時ファイルに書き出し（ラン）、取り出し時に各ランとメモリ上のレコードをマージします（外部マージソート）。
+ * 並べ替えは安定で、キーが等しいレコードは追加した順に取り出されます。
+ * 一時ファイルは {@link #close()} で削除するため、エラーや取り消しの場合も必ずクローズすること。
+ * </p>
+ *
+ * <p>
+ * 値の比較は、両方が整数ならば数値として、空文字列は最小、整数は整数以外の値より小さいものとし、
+ * それ以外は文字列として比較します。列の保持形式によらず同じ規則で比較するため、
+ * 保持形式の異なるランどうしでも正しくマージできます。
+ * </p>
+ */
+public class ReportRecordStore implements Closeable {
+
+    /**
+     * 1列分の値を保持する列です。
+     */
+    private static class Column {
+        /** 整数の値。辞書形式に切り替えた後はnull */
+        private long[] longValues = new long[16];
+        /** 辞書への番号。整数形式の間はnull */
+        private int[] codes;
+        private ArrayList<String> dictionary;
+        private HashMap<String, Integer> dictionaryIndex;
+        /** 辞書の値が整数かどうかと、その値（比較の高速化のため） */
+        private BitSet dictionaryNumeric;
+        private long[] dictionaryLongValues;
+        private final BitSet blanks = new BitSet();
+
+        private boolean isLongColumn() {
+            return codes == null;
+        }
+
+        /**
+         * 値を追加し、増えた推定メモリ使用量（バイト）を返します。
+         */
+        private long add(int index, String value) {
+            if (value == null || value.isEmpty()) {
+                blanks.set(index);
+                if (isLongColumn()) {
+                    longValues = ensureCapacity(longValues, index);
+                } else {
+                    codes = ensureCapacity(codes, index);
+                }
+                return isLongColumn() ? Long.BYTES : Integer.BYTES;
+            }
+            if (isLongColumn()) {
+                Long longValue = parseLong(value);
+                if (longValue != null) {
+                    longValues = ensureCapacity(longValues, index);
+                    longValues[index] = longValue;
+                    return Long.BYTES;
+                }
+                return convertToDictionary(index) + addToDictionary(index, value);
+            }
+            return addToDictionary(index, value);
+        }
+
+        private long addToDictionary(int index, String value) {
+            long bytes = Integer.BYTES;
+            Integer code = dictionaryIndex.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                dictionaryIndex.put(value, code);
+                Long longValue = parseLong(value);
+                dictionaryLongValues = ensureCapacity(dictionaryLongValues, code);
+                if (longValue != null) {
+                    dictionaryNumeric.set(code);
+                    dictionaryLongValues[code] = longValue;
+                }
+                bytes += estimateStringBytes(value);
+            }
+            codes = ensureCapacity(codes, index);
+            codes[index] = code;
+            return bytes;
+        }
+
+        /**
+         * 整数形式で保持している値を辞書形式に変換し、増えた推定メモリ使用量を返します。
+         */
+        private long convertToDictionary(int size) {
+            codes = new int[Math.max(16, longValues.length)];
+            dictionary = new ArrayList<>();
+            dictionaryIndex = new HashMap<>();
+            dictionaryNumeric = new BitSet();
+            dictionaryLongValues = new long[16];
+            long longBytes = (long) size * Long.BYTES;
+            long bytes = 0;
+            long[] values = longValues;
+            longValues = null;
+            for (int i = 0; i < size; i++) {
+                if (!blanks.get(i)) {
+                    bytes += addToDictionary(i, Long.toString(values[i]));
+                } else {
+                    bytes += Integer.BYTES;
+                }
+            }
+            return bytes - longBytes;
+        }
+
+        private String get(int index) {
+            if (blanks.get(index)) {
+                return "";
+            }
+            return isLongColumn() ? Long.toString(longValues[index]) : dictionary.get(codes[index]);
+        }
+
+        private int compare(int index1, int index2) {
+            boolean blank1 = blanks.get(index1);
+            boolean blank2 = blanks.get(index2);
+            if (blank1 || blank2) {
+                return Boolean.compare(!blank1, !blank2);
+            }
+            if (isLongColumn()) {
+                return Long.compare(longValues[index1], longValues[index2]);
+            }
+            int code1 = codes[index1];
+            int code2 = codes[index2];
+            if (code1 == code2) {
+                return 0;
+            }
+            boolean numeric1 = dictionaryNumeric.get(code1);
+            boolean numeric2 = dictionaryNumeric.get(code2);
+            if (numeric1 && numeric2) {
+                return Long.compare(dictionaryLongValues[code1], dictionaryLongValues[code2]);
+            }
+            if (numeric1 || numeric2) {
+                return numeric1 ? -1 : 1;
+            }
+            return dictionary.get(code1).compareTo(dictionary.get(code2));
+        }
+    }
+
+    private final int[] keyColumns;
+    private final boolean[] descending;
+    private final long spillThresholdBytes;
+    private final Path spillDirectory;
+    private Column[] columns;
+    private int size;
+    private long estimatedBytes;
+    private final ArrayList<Path> runFiles = new ArrayList<>();
+    private final ArrayList<Closeable> openRunInputs = new ArrayList<>();
+
+    /**
+     * レコードストアを作成します。
+     *
+     * @param columnCount         列数
+     * @param keyColumns          並べ替えのキーとする列番号（優先度の高い順）。空の場合は追加した順に取り出します。
+     * @param descending          キーごとの降順指定
+     * @param spillThresholdBytes メモリ上に保持するレコードの推定メモリ使用量の上限（バイト）
+     */
+    public ReportRecordStore(int columnCount, int[] keyColumns, boolean[] descending, long spillThresholdBytes) {
+        this(columnCount, keyColumns, descending, spillThresholdBytes, null);
+    }
+
+    /**
+     * 一時ファイルを作成するディレクトリを指定して、レコードストアを作成します。
+     *
+     * @param columnCount         列数
+     * @param keyColumns          並べ替えのキーとする列番号（優先度の高い順）。空の場合は追加した順に取り出します。
+     * @param descending          キーごとの降順指定
+     * @param spillThresholdBytes メモリ上に保持するレコードの推定メモリ使用量の上限（バイト）
+     * @param spillDirectory      一時ファイルを作成するディレクトリ。nullの場合はシステムの一時ディレクトリ
+     */
+    public ReportRecordStore(int columnCount, int[] keyColumns, boolean[] descending, long spillThresholdBytes,
+            Path spillDirectory) {
+        this.keyColumns = keyColumns;
+        this.descending = descending;
+        this.spillThresholdBytes = spillThresholdBytes;
+        this.spillDirectory = spillDirectory;
+        this.columns = createColumns(columnCount);
+    }
+
+    private static Column[] createColumns(int columnCount) {
+        Column[] columns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = new Column();
+        }
+        return columns;
+    }
+
+    /**
+     * レコードを追加します。推定メモリ使用量が閾値を超えた場合は、一時ファイルに書き出します。
+     *
+     * @param values 列ごとの値
+     * @throws IOException 一時ファイルの書き込み中にエラーが発生した場合
+     */
+    public void add(String[] values) throws IOException {
+        for (int i = 0; i < columns.length; i++) {
+            estimatedBytes += columns[i].add(size, values[i]);
+        }
+        size++;
+        if (estimatedBytes >= spillThresholdBytes) {
+            spill();
+        }
+    }
+
+    /**
+     * 一時ファイルに書き出したランの数を返します。
+     *
+     * @return ランの数
+     */
+    public int getRunCount() {
+        return runFiles.size();
+    }
+
+    private void spill() throws IOException {
+        int[] order = sortedOrder();
+        Path runFile;
+        if (spillDirectory == null) {
+            runFile = Files.createTempFile("report_run_", ".tmp");
+        } else {
+            Files.createDirectories(spillDirectory);
+            runFile = Files.createTempFile(spillDirectory, "report_run_", ".tmp");
+        }
+        // 書き込み中にエラーが発生した場合も、close()で削除する
+        runFiles.add(runFile);
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(runFile)))) {
+            for (int index : order) {
+                for (Column column : columns) {
+                    byte[] bytes = column.get(index).getBytes(StandardCharsets.UTF_8);
+                    output.writeInt(bytes.length);
+                    output.write(bytes);
+                }
+            }
+        }
+        columns = createColumns(columns.length);
+        size = 0;
+        estimatedBytes = 0;
+    }
+
+    /**
+     * メモリ上のレコードの並べ替え後の順序を求めます（安定なマージソート）。
+     */
+    private int[] sortedOrder() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        if (keyColumns.length > 0 && size > 1) {
+            mergeSort(order, new int[size], 0, size);
+        }
+        return order;
+    }
+
+    private void mergeSort(int[] order, int[] work, int from, int to) {
+        if (to - from <= 1) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, work, from, middle);
+        mergeSort(order, work, middle, to);
+        if (compareIndexes(order[middle - 1], order[middle]) <= 0) {
+            // 既に並んでいる
+            return;
+        }
+        System.arraycopy(order, from, work, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && compareIndexes(work[left], work[right]) <= 0)) {
+                order[i] = work[left++];
+            } else {
+                order[i] = work[right++];
+            }
+        }
+    }
+
+    private int compareIndexes(int index1, int index2) {
+        for (int i = 0; i < keyColumns.length; i++) {
+            int result = columns[keyColumns[i]].compare(index1, index2);
+            if (result != 0) {
+                return descending[i] ? -result : result;
+            }
+        }
+        return 0;
+    }
+
+    private int compareRecords(String[] record1, String[] record2) {
+        for (int i = 0; i < keyColumns.length; i++) {
+            int result = compareValues(record1[keyColumns[i]], record2[keyColumns[i]]);
+            if (result != 0) {
+                return descending[i] ? -result : result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 2つの値を比較します。比較の規則はクラスの説明を参照してください。
+     *
+     * @param value1 値1
+     * @param value2 値2
+     * @return value1がvalue2より小さい場合は負、等しい場合は0、大きい場合は正の値
+     */
+    public static int compareValues(String value1, String value2) {
+        boolean blank1 = value1.isEmpty();
+        boolean blank2 = value2.isEmpty();
+        if (blank1 || blank2) {
+            return Boolean.compare(!blank1, !blank2);
+        }
+        Long longValue1 = parseLong(value1);
+        Long longValue2 = parseLong(value2);
+        if (longValue1 != null && longValue2 != null) {
+            return Long.compare(longValue1, longValue2);
+        }
+        if (longValue1 != null || longValue2 != null) {
+            return longValue1 != null ? -1 : 1;
+        }
+        return value1.compareTo(value2);
+    }
+
+    /**
+     * 値が整数の正規表現（先頭の0や+記号を含まない）の場合に、その値を返します。
+     * 元の文字列に戻せない値（"007"など）は整数として扱いません。
+     */
+    private static Long parseLong(String value) {
+        int length = value.length();
+        if (length == 0 || length > 19) {
+            return null;
+        }
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        if (start == length || (value.charAt(start) == '0' && length > start + 1)) {
+            return null;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+        }
+        try {
+            long longValue = Long.parseLong(value);
+            return longValue == 0 && start == 1 ? null : longValue;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long estimateStringBytes(String value) {
+        // Stringオブジェクトと配列のヘッダ、辞書のエントリの概算
+        return 64 + 2L * value.length();
+    }
+
+    private static long[] ensureCapacity(long[] array, int index) {
+        return index < array.length ? array : Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    }
+
+    private static int[] ensureCapacity(int[] array, int index) {
+        return index < array.length ? array : Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    }
+
+    /**
+     * 追加したすべてのレコードを、キー項目の順に取り出すイテレータを返します。
+     *
+     * @return レコード（列ごとの値の配列）のイテレータ
+     * @throws UncheckedIOException 一時ファイルの読み込み中にエラーが発生した場合（イテレータの操作時）
+     */
+    public Iterator<String[]> sortedIterator() {
+        Iterator<String[]> memoryIterator = memoryIterator(sortedOrder());
+        if (runFiles.isEmpty()) {
+            return memoryIterator;
+        }
+        ArrayList<Iterator<String[]>> runIterators = new ArrayList<>();
+        for (Path runFile : runFiles) {
+            runIterators.add(runIterator(runFile));
+        }
+        runIterators.add(memoryIterator);
+        return mergeIterator(runIterators);
+    }
+
+    private Iterator<String[]> memoryIterator(int[] order) {
+        return new Iterator<String[]>() {
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                return position < order.length;
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int index = order[position++];
+                String[] record = new String[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    record[i] = columns[i].get(index);
+                }
+                return record;
+            }
+        };
+    }
+
+    private Iterator<String[]> runIterator(Path runFile) {
+        DataInputStream input;
+        try {
+            input = new DataInputStream(new BufferedInputStream(Files.newInputStream(runFile)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        openRunInputs.add(input);
+        return new Iterator<String[]>() {
+            private String[] nextRecord = readRecord();
+
+            /**
+             * 一時ファイルから1レコードを読み込みます。レコードの先頭でファイルが終わっている場合だけを
+             * 一時ファイルの終端とし、レコードの途中で終わっている場合は壊れた一時ファイルとしてエラーにします。
+             */
+            private String[] readRecord() {
+                String[] record = new String[columns.length];
+                try {
+                    int firstByte = input.read();
+                    if (firstByte < 0) {
+                        // 一時ファイルの終端
+                        closeQuietly();
+                        return null;
+                    }
+                    for (int i = 0; i < record.length; i++) {
+                        int length = i == 0
+                                ? firstByte << 24 | input.readUnsignedByte() << 16 | input.readUnsignedShort()
+                                : input.readInt();
+                        byte[] bytes = new byte[length];
+                        input.readFully(bytes);
+                        record[i] = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    return record;
+                } catch (EOFException e) {
+                    closeQuietly();
+                    throw new UncheckedIOException("一時ファイルがレコードの途中で終わっています", e);
+                } catch (IOException e) {
+                    closeQuietly();
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            private void closeQuietly() {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // 読み込み終了後のクローズ時の例外は無視する
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextRecord != null;
+            }
+
+            @Override
+            public String[] next() {
+                if (nextRecord == null) {
+                    throw new NoSuchElementException();
+                }
+                String[] record = nextRecord;
+                nextRecord = readRecord();
+                return record;
+            }
+        };
+    }
+
+    /**
+     * 並べ替え済みの各ランをマージします。キーが等しい場合は先に書き出したランのレコードを先に取り出します。
+     */
+    private Iterator<String[]> mergeIterator(ArrayList<Iterator<String[]>> runIterators) {
+        PriorityQueue<Object[]> heads = new PriorityQueue<>((head1, head2) -> {
+            int result = compareRecords((String[]) head1[0], (String[]) head2[0]);
+            return result != 0 ? result : Integer.compare((Integer) head1[1], (Integer) head2[1]);
+        });
+        for (int i = 0; i < runIterators.size(); i++) {
+            if (runIterators.get(i).hasNext()) {
+                heads.add(new Object[] { runIterators.get(i).next(), i });
+            }
+        }
+        return new Iterator<String[]>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public String[] next() {
+                Object[] head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                int runNo = (Integer) head[1];
+                Iterator<String[]> runIterator = runIterators.get(runNo);
+                if (runIterator.hasNext()) {
+                    heads.add(new Object[] { runIterator.next(), runNo });
+                }
+                return (String[]) head[0];
+            }
+        };
+    }
+
+    /**
+     * 読み込み中の一時ファイルを閉じ、一時ファイルを削除します。
+     */
+    @Override
+    public void close() {
+        for (Closeable input : openRunInputs) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                // 一時ファイルのクローズ時の例外は無視する
+            }
+        }
+        openRunInputs.clear();
+        for (Path runFile : runFiles) {
+            try {
+                Files.deleteIfExists(runFile);
+            } catch (IOException e) {
+                // 一時ファイル削除時の例外は無視する
+            }
+        }
+        runFiles.clear();
+    }
+}
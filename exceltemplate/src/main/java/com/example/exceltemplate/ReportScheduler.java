@@ -0,0 +1,415 @@
+package com.example.exceltemplate;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * 優先度クラスとテナントごとの同時実行数を考慮して、{@link ReportUtility#outputReport(File, String)} を
+ * 非同期に実行するスケジューラです。
+ *
+ * <p>
+ * 優先度クラス間は重み付き公平キューイング（WFQ）で実行順を決めます。
+ * ジョブのコストはデータファイルのサイズで見積もり、コストを優先度クラスの重みで割った値を
+ * 仮想終了時刻として、仮想終了時刻が最も小さいジョブから実行します。
+ * これにより、大量のBATCHジョブが待っていても、INTERACTIVEジョブは重みに応じて先に実行されます。
+ * </p>
+ *
+ * <p>
+ * 同じ優先度クラスの中では、見積もりコストが小さいジョブを先に実行し、短いジョブが長いジョブの
+ * 後ろで待たされないようにします。ただし、{@code report.scheduler.aging-millis} 以上待っている
+ * ジョブは到着順に実行し、長いジョブが無期限に後回しにされないようにします。
+ * </p>
+ *
+ * <p>
+ * テナントごとの同時実行数が {@code report.scheduler.tenant-max-concurrency} に達している場合、
+ * そのテナントのジョブは他のジョブが終了するまで実行しません。
+ * </p>
+ *
+ * <p>
+ * ジョブには期限を指定できます。返されたFutureを {@link CompletableFuture#cancel(boolean)} で取り消した場合や
+ * 期限を過ぎた場合、実行待ちのジョブは実行せず、実行中のジョブは {@link ReportCancellationToken} により
+ * 協調的に中断し、Futureは {@link ReportCancelledException} で終了します。
+ * 実行待ちのまま期限を過ぎたジョブは、ワーカーが空くのを待たずに期限の時点でキューから取り除き、Futureを終了します。
+ * 取り消しと期限切れは、失敗とは別に統計情報に集計します。
+ * </p>
+ *
+ * <p>
+ * スケジューラの停止時は、実行待ちのジョブのFutureを取り消し、実行中のジョブに取り消しを伝えます。
+ * 停止後に投入されたジョブは受け付けません。
+ * </p>
+ */
+@Component
+public class ReportScheduler implements DisposableBean {
+
+    /**
+     * 実行待ち、または実行中のジョブです。
+     */
+    private static class ScheduledJob {
+        private File reportDataFile;
+        private String outputFormat;
+        private String tenantId;
+        private ReportPriority priority;
+        private long cost;
+        private long enqueuedNanos;
+        private ReportCancellationToken cancellationToken;
+        private CompletableFuture<String> future;
+        /** 実行待ちのまま期限を過ぎた場合にジョブを終了するタスク。期限が無い場合はnull */
+        private ScheduledFuture<?> timeoutTask;
+    }
+
+    /**
+     * 優先度クラスごとの実行待ちキューと統計情報です。
+     */
+    private static class PriorityClass {
+        private final ArrayList<ScheduledJob> queue = new ArrayList<>();
+        /** 直前に実行を開始したジョブの仮想終了時刻 */
+        private double lastFinishTag;
+        private int runningCount;
+        private long startedCount;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private long failedCount;
+        private long cancelledCount;
+        private long timedOutCount;
+    }
+
+    @Autowired
+    private ReportUtility reportUtility;
+
+    @Value("${report.scheduler.workers:0}")
+    private int workerCount;
+    @Value("${report.scheduler.tenant-max-concurrency:2}")
+    private int tenantMaxConcurrency;
+    @Value("${report.scheduler.aging-millis:30000}")
+    private long agingMillis;
+
+    private final EnumMap<ReportPriority, PriorityClass> priorityClasses = new EnumMap<>(ReportPriority.class);
+    /** 実行中のジョブがあるテナントの実行中のジョブ数。実行中のジョブが無いテナントは含まない */
+    private final HashMap<String, Integer> tenantRunningCounts = new HashMap<>();
+    private final HashSet<ScheduledJob> runningJobs = new HashSet<>();
+    /** WFQの仮想時刻。直前に実行を開始したジョブの仮想開始時刻 */
+    private double virtualTime;
+    private ExecutorService executor;
+    private ScheduledThreadPoolExecutor timeoutExecutor;
+    private boolean isShutdown;
+
+    public ReportScheduler() {
+        for (ReportPriority priority : ReportPriority.values()) {
+            priorityClasses.put(priority, new PriorityClass());
+        }
+    }
+
+    /**
+     * 帳票作成ジョブを投入します。
+     *
+     * @param reportDataFile データファイル
+     * @param outputFormat   出力形式
+     * @param tenantId       テナントID
+     * @param priority       優先度クラス
+     * @return 作成した帳票のパス（{@link ReportUtility#outputReport(File, String)} の戻り値）を返すFuture
+     * @throws RejectedExecutionException スケジューラが停止している場合
+     */
+    public CompletableFuture<String> submit(File reportDataFile, String outputFormat, String tenantId,
+            ReportPriority priority) {
+        return submit(reportDataFile, outputFormat, tenantId, priority, null);
+    }
+
+    /**
+     * 期限を指定して帳票作成ジョブを投入します。
+     *
+     * @param reportDataFile データファイル
+     * @param outputFormat   出力形式
+     * @param tenantId       テナントID
+     * @param priority       優先度クラス
+     * @param timeout        投入時からの期限。nullの場合は期限なし
+     * @return 作成した帳票のパス（{@link ReportUtility#outputReport(File, String)} の戻り値）を返すFuture。
+     *         取り消した場合は実行中の帳票作成も中断する
+     * @throws RejectedExecutionException スケジューラが停止している場合
+     */
+    public CompletableFuture<String> submit(File reportDataFile, String outputFormat, String tenantId,
+            ReportPriority priority, Duration timeout) {
+        ScheduledJob job = new ScheduledJob();
+        job.reportDataFile = reportDataFile;
+        job.outputFormat = outputFormat;
+        job.tenantId = tenantId;
+        job.priority = priority;
+        // データファイルのサイズをコストとする（空ファイルでも0にはしない）
+        job.cost = Math.max(1, reportDataFile.length());
+        job.cancellationToken = timeout == null ? new ReportCancellationToken()
+                : ReportCancellationToken.withTimeout(timeout);
+        job.future = new CompletableFuture<>();
+        // Futureが取り消された場合は、実行中の帳票作成にも取り消しを伝える
+        job.future.whenComplete((reportFilePath, e) -> {
+            if (job.future.isCancelled()) {
+                job.cancellationToken.cancel();
+            }
+        });
+
+        synchronized (this) {
+            // 停止後はキューに追加しない。停止はこのロック内で行うため、実行の依頼が拒否されることはない
+            if (isShutdown) {
+                throw new RejectedExecutionException("スケジューラは停止しています");
+            }
+            job.enqueuedNanos = System.nanoTime();
+            priorityClasses.get(priority).queue.add(job);
+            if (timeout != null) {
+                job.timeoutTask = getTimeoutExecutor().schedule(() -> expireQueuedJob(job), timeout.toNanos(),
+                        TimeUnit.NANOSECONDS);
+            }
+            getExecutor().execute(this::runNextJob);
+        }
+        return job.future;
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = workerCount > 0 ? workerCount : Runtime.getRuntime().availableProcessors();
+            executor = Executors.newFixedThreadPool(threads);
+        }
+        return executor;
+    }
+
+    private ScheduledThreadPoolExecutor getTimeoutExecutor() {
+        if (timeoutExecutor == null) {
+            timeoutExecutor = new ScheduledThreadPoolExecutor(1);
+            // 実行を開始したジョブのタスクは取り消すため、取り消したタスクをキューに残さない
+            timeoutExecutor.setRemoveOnCancelPolicy(true);
+        }
+        return timeoutExecutor;
+    }
+
+    /**
+     * 実行待ちのまま期限を過ぎたジョブをキューから取り除き、Futureを {@link ReportCancelledException} で終了します。
+     * 既に実行を開始したジョブは、{@link ReportCancellationToken} により中断するため何もしません。
+     */
+    private void expireQueuedJob(ScheduledJob job) {
+        synchronized (this) {
+            PriorityClass priorityClass = priorityClasses.get(job.priority);
+            if (!priorityClass.queue.remove(job)) {
+                return;
+            }
+            if (job.future.isDone()) {
+                if (job.future.isCancelled()) {
+                    priorityClass.cancelledCount++;
+                }
+                return;
+            }
+            priorityClass.timedOutCount++;
+        }
+        // Futureのコールバックをロックの外で実行するため、Futureの終了はロックを解放してから行う
+        job.future.completeExceptionally(new ReportCancelledException(true));
+    }
+
+    /**
+     * 実行可能なジョブを1件選び、実行します。実行可能なジョブが無い場合は何もしません。
+     *
+     * <p>
+     * ジョブの投入時と終了時に1回ずつ呼び出されるため、テナントの同時実行数の上限で待たされたジョブも、
+     * そのテナントのジョブが終了した時点で実行されます。
+     * </p>
+     */
+    private void runNextJob() {
+        ScheduledJob job;
+        synchronized (this) {
+            job = pollNextJob();
+            if (job == null) {
+                return;
+            }
+        }
+
+        boolean isFailed = false;
+        ReportCancelledException cancelledException = null;
+        try {
+            job.future.complete(reportUtility.outputReport(job.reportDataFile, job.outputFormat,
+                    job.cancellationToken));
+        } catch (ReportCancelledException e) {
+            cancelledException = e;
+            job.future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            isFailed = true;
+            job.future.completeExceptionally(e);
+        } catch (Throwable e) {
+            // Futureを待っている呼び出し元が終わらなくならないよう、エラーでもFutureを完了する
+            isFailed = true;
+            job.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                PriorityClass priorityClass = priorityClasses.get(job.priority);
+                if (cancelledException != null && cancelledException.isTimedOut()) {
+                    priorityClass.timedOutCount++;
+                } else if (cancelledException != null) {
+                    priorityClass.cancelledCount++;
+                } else if (isFailed) {
+                    priorityClass.failedCount++;
+                }
+                priorityClass.runningCount--;
+                runningJobs.remove(job);
+                tenantRunningCounts.computeIfPresent(job.tenantId, (tenantId, count) -> count == 1 ? null : count - 1);
+                if (!isShutdown) {
+                    executor.execute(this::runNextJob);
+                }
+            }
+        }
+    }
+
+    /**
+     * 次に実行するジョブをキューから取り出し、実行中として記録します。
+     * 呼び出し元で {@code this} をロックしていること。
+     */
+    private ScheduledJob pollNextJob() {
+        long now = System.nanoTime();
+        ScheduledJob nextJob = null;
+        double nextStartTag = 0;
+        double nextFinishTag = Double.MAX_VALUE;
+        for (ReportPriority priority : ReportPriority.values()) {
+            PriorityClass priorityClass = priorityClasses.get(priority);
+            ScheduledJob job = selectJob(priorityClass, now);
+            if (job == null) {
+                continue;
+            }
+            // WFQの仮想開始時刻と仮想終了時刻を求め、仮想終了時刻が最小のジョブを選ぶ
+            double startTag = Math.max(virtualTime, priorityClass.lastFinishTag);
+            double finishTag = startTag + (double) job.cost / priority.getWeight();
+            if (finishTag < nextFinishTag) {
+                nextJob = job;
+                nextStartTag = startTag;
+                nextFinishTag = finishTag;
+            }
+        }
+        if (nextJob == null) {
+            return null;
+        }
+
+        PriorityClass priorityClass = priorityClasses.get(nextJob.priority);
+        priorityClass.queue.remove(nextJob);
+        if (nextJob.timeoutTask != null) {
+            nextJob.timeoutTask.cancel(false);
+        }
+        priorityClass.lastFinishTag = nextFinishTag;
+        virtualTime = nextStartTag;
+
+        long waitNanos = now - nextJob.enqueuedNanos;
+        priorityClass.runningCount++;
+        priorityClass.startedCount++;
+        priorityClass.totalWaitNanos += waitNanos;
+        priorityClass.maxWaitNanos = Math.max(priorityClass.maxWaitNanos, waitNanos);
+        tenantRunningCounts.merge(nextJob.tenantId, 1, Integer::sum);
+        runningJobs.add(nextJob);
+        return nextJob;
+    }
+
+    /**
+     * 優先度クラスのキューから、テナントの同時実行数の上限に達していないジョブを選びます。
+     * 待ち時間が上限を超えたジョブがあれば最も古いものを、無ければ見積もりコストが最小のものを選びます。
+     * 実行前に取り消されたジョブと期限を過ぎたジョブはキューから取り除きます。
+     * 期限を過ぎたジョブは通常 {@link #expireQueuedJob(ScheduledJob)} で取り除かれますが、
+     * 期限の直後に選ばれた場合に備えてここでも確認します。
+     */
+    private ScheduledJob selectJob(PriorityClass priorityClass, long now) {
+        long agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+        ScheduledJob shortestJob = null;
+        Iterator<ScheduledJob> iterator = priorityClass.queue.iterator();
+        while (iterator.hasNext()) {
+            ScheduledJob job = iterator.next();
+            if (job.future.isDone()) {
+                iterator.remove();
+                if (job.future.isCancelled()) {
+                    priorityClass.cancelledCount++;
+                }
+                continue;
+            }
+            if (job.cancellationToken.isTimedOut()) {
+                iterator.remove();
+                priorityClass.timedOutCount++;
+                job.future.completeExceptionally(new ReportCancelledException(true));
+                continue;
+            }
+            if (tenantRunningCounts.getOrDefault(job.tenantId, 0) >= tenantMaxConcurrency) {
+                continue;
+            }
+            // キューは到着順のため、最初に見つかった待ち時間超過のジョブが最も古い
+            if (now - job.enqueuedNanos >= agingNanos) {
+                return job;
+            }
+            if (shortestJob == null || job.cost < shortestJob.cost) {
+                shortestJob = job;
+            }
+        }
+        return shortestJob;
+    }
+
+    /**
+     * 優先度クラスごとの統計情報を取得します。
+     *
+     * @param priority 優先度クラス
+     * @return 統計情報のスナップショット
+     */
+    public synchronized ReportSchedulerStatistics getStatistics(ReportPriority priority) {
+        PriorityClass priorityClass = priorityClasses.get(priority);
+        long now = System.nanoTime();
+        long oldestWaitNanos = priorityClass.queue.isEmpty() ? 0 : now - priorityClass.queue.get(0).enqueuedNanos;
+        long averageWaitNanos = priorityClass.startedCount == 0 ? 0
+                : priorityClass.totalWaitNanos / priorityClass.startedCount;
+        return new ReportSchedulerStatistics(priority, priorityClass.queue.size(), priorityClass.runningCount,
+                priorityClass.startedCount, TimeUnit.NANOSECONDS.toMillis(averageWaitNanos),
+                TimeUnit.NANOSECONDS.toMillis(priorityClass.maxWaitNanos),
+                TimeUnit.NANOSECONDS.toMillis(oldestWaitNanos), priorityClass.failedCount,
+                priorityClass.cancelledCount, priorityClass.timedOutCount);
+    }
+
+    /**
+     * スケジューラを停止します。
+     *
+     * <p>
+     * 実行待ちのジョブのFutureは {@link java.util.concurrent.CancellationException} で終了し、
+     * 実行中のジョブには {@link ReportCancellationToken} で取り消しを伝えます。
+     * </p>
+     */
+    @Override
+    public void destroy() {
+        ArrayList<ScheduledJob> queuedJobs = new ArrayList<>();
+        synchronized (this) {
+            isShutdown = true;
+            for (PriorityClass priorityClass : priorityClasses.values()) {
+                for (ScheduledJob job : priorityClass.queue) {
+                    if (!job.future.isDone()) {
+                        queuedJobs.add(job);
+                        priorityClass.cancelledCount++;
+                    }
+                }
+                priorityClass.queue.clear();
+            }
+            for (ScheduledJob job : runningJobs) {
+                job.cancellationToken.cancel();
+            }
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (timeoutExecutor != null) {
+                timeoutExecutor.shutdownNow();
+            }
+        }
+        // Futureのコールバックをロックの外で実行するため、取り消しはロックを解放してから行う
+        for (ScheduledJob job : queuedJobs) {
+            job.future.cancel(false);
+        }
+    }
+}
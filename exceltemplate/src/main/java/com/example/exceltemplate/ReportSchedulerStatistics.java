@@ -0,0 +1,44 @@
+package com.example.exceltemplate;
+
+import lombok.Getter;
+
+/**
+ * {@link ReportScheduler} の優先度クラスごとの統計情報のスナップショットです。
+ */
+@Getter
+public class ReportSchedulerStatistics {
+    private final ReportPriority priority;
+    /** 実行待ちのジョブ数 */
+    private final int queueDepth;
+    /** 実行中のジョブ数 */
+    private final int runningCount;
+    /** 実行を開始したジョブの累計数 */
+    private final long startedCount;
+    /** 実行開始までの平均待ち時間（ミリ秒） */
+    private final long averageWaitMillis;
+    /** 実行開始までの最大待ち時間（ミリ秒） */
+    private final long maxWaitMillis;
+    /** 実行待ちのジョブのうち、最も長く待っているジョブの待ち時間（ミリ秒） */
+    private final long oldestWaitMillis;
+    /** 例外で終了したジョブの累計数（取り消しと期限切れを除く） */
+    private final long failedCount;
+    /** 取り消されたジョブの累計数（実行待ちの間に取り消されたものを含む） */
+    private final long cancelledCount;
+    /** 期限を過ぎたジョブの累計数（実行待ちの間に期限を過ぎたものを含む） */
+    private final long timedOutCount;
+
+    ReportSchedulerStatistics(ReportPriority priority, int queueDepth, int runningCount, long startedCount,
+            long averageWaitMillis, long maxWaitMillis, long oldestWaitMillis, long failedCount, long cancelledCount,
+            long timedOutCount) {
+        this.priority = priority;
+        this.queueDepth = queueDepth;
+        this.runningCount = runningCount;
+        this.startedCount = startedCount;
+        this.averageWaitMillis = averageWaitMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.oldestWaitMillis = oldestWaitMillis;
+        this.failedCount = failedCount;
+        this.cancelledCount = cancelledCount;
+        this.timedOutCount = timedOutCount;
+    }
+}
@@ -0,0 +1,504 @@
+package com.example.exceltemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbookFactory;
+
+/**
+ * 明細行を複数のワークブック（シャード）に分割して出力します。
+ *
+ * <p>
+ * 明細行と集計行はワークブックに直接書き込まず、現在のシャードにためます。
+ * シャードの行数が上限に達した場合、推定サイズが上限に達した場合、または明細行の出力位置が
+ * Excelの最大行数を超える場合は、その時点のワークブック（テンプレートに固定位置のデータと
+ * シート操作を反映したもの）にためた明細行を書き込んだシャードを、別スレッドで作成します。
+ * 各シャードは同じテンプレートから始まり、シャードをまたいだ明細行は1行目の出力位置から出力されます。
+ * </p>
+ *
+ * <p>
+ * 作成中のシャードの数は作成の許可（{@link Semaphore}）の数までに制限し、許可が無い場合は作成が終わるまで
+ * 次のシャードの確定を待ちます。シャードを作成するスレッドプールと作成の許可は複数の帳票で共有でき、
+ * 同時に作成する帳票の数によらず、作成中のシャードの総数を制限します。
+ * 推定サイズは、セルの値のUTF-8でのバイト数にセルごとのXMLの固定長を加えた、圧縮前のシートXMLのサイズです。
+ * </p>
+ *
+ * <p>
+ * シャードの確定、作成の許可やシャードの作成の終了を待つ間、シャードのセルの書き込み中とExcelファイルの書き込み中に
+ * 期限と取り消しを確認し、取り消された場合は {@link ReportCancelledException} をスローします。
+ * 作成スレッドも取り消しを確認して終了するため、取り消された帳票がスレッドを使い続けることはありません。
+ * </p>
+ *
+ * <p>
+ * 別スレッドで作成するシャードには、ワークブックをバイト列に書き出した複製（スナップショット）を使用します。
+ * スナップショットはワークブックが変更されるまで（{@link #markModified()} まで）後続のシャードで共有し、
+ * 1つのデータセクションを複数のシャードに分割する場合もワークブックの書き出しは1回だけ行います。
+ * 最後のシャードは複製せず、元のワークブックに明細行を書き込んで呼び出し元のスレッドで作成します。
+ * </p>
+ */
+public class ReportShardWriter implements Closeable {
+    /** 推定サイズに加算する行ごとのXMLのサイズ（バイト） */
+    private static final int ROW_OVERHEAD_BYTES = 16;
+    /** 推定サイズに加算するセルごとのXMLのサイズ（バイト） */
+    private static final int CELL_OVERHEAD_BYTES = 32;
+    /** 作成の許可やシャードの作成の終了を待つ間に、取り消しを確認する間隔（ミリ秒） */
+    private static final long CANCELLATION_CHECK_MILLIS = 100;
+
+    /**
+     * シャードにためたセルの値です。確定時にシートをシート番号に解決します。
+     */
+    private static class ShardCell {
+        private XSSFSheet sheet;
+        private int sheetIndex;
+        private int rowIndex;
+        private int columnIndex;
+        private Object value;
+    }
+
+    /**
+     * 1つのシートに出力する明細行を、現在のシャードにためる出力先です。
+     */
+    private class ShardLineSink implements ReportLineSink {
+        private final XSSFSheet sheet;
+        /** 現在のシャードの1行目に出力する行番号 */
+        private int baseLineNo;
+
+        private ShardLineSink(XSSFSheet sheet) {
+            this.sheet = sheet;
+        }
+
+        @Override
+        public void writeLine(int lineNo, CellReference[] cellReferences, Object[] values) {
+            int maxRowIndex = -1;
+            long lineBytes = ROW_OVERHEAD_BYTES;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    maxRowIndex = Math.max(maxRowIndex, cellReferences[i].getRow());
+                    lineBytes += CELL_OVERHEAD_BYTES + estimateUtf8Length(String.valueOf(values[i]));
+                }
+            }
+            if (maxRowIndex < 0) {
+                return;
+            }
+
+            boolean isFull = shardLineCount >= maxRows || (maxBytes > 0 && shardBytes + lineBytes > maxBytes)
+                    || maxRowIndex + lineNo - baseLineNo > SheetLineSink.LAST_ROW_INDEX;
+            if (isFull && shardLineCount > 0) {
+                try {
+                    closeShard(sheet.getWorkbook());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                baseLineNo = lineNo;
+            }
+            int rowOffset = lineNo - baseLineNo;
+            if (maxRowIndex + rowOffset > SheetLineSink.LAST_ROW_INDEX) {
+                // 1行だけでも最大行数を超える
+                throw new IllegalArgumentException("Excelの最大行数を超えています");
+            }
+
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    ShardCell cell = new ShardCell();
+                    cell.sheet = sheet;
+                    cell.rowIndex = cellReferences[i].getRow() + rowOffset;
+                    cell.columnIndex = cellReferences[i].getCol();
+                    cell.value = values[i];
+                    cells.add(cell);
+                }
+            }
+            shardLineCount++;
+            shardBytes += lineBytes;
+        }
+    }
+
+    private final Path outputDir;
+    private final int maxRows;
+    private final long maxBytes;
+    private final ExecutorService executor;
+    /** スレッドプールをこのインスタンスで作成し、クローズで停止する場合はtrue */
+    private final boolean ownsExecutor;
+    private final Semaphore renderPermits;
+    private final ReportCancellationToken cancellationToken;
+    private final ArrayList<Future<Path>> shardFutures = new ArrayList<>();
+    /** 作成を開始したシャードのExcelファイル。作成スレッドからも追加するため、thisでロックする */
+    private final ArrayList<Path> shardFiles = new ArrayList<>();
+    /** クローズ済みか。thisでロックする */
+    private boolean closed;
+    private ArrayList<ShardCell> cells = new ArrayList<>();
+    private int shardLineCount;
+    private long shardBytes;
+    /** 直前にシャードを確定した後に、ワークブックが変更されたか */
+    private boolean modified;
+    private boolean finished;
+    /** 後続のシャードで共有するスナップショットと、その作成元のワークブック。ワークブックの変更で破棄する */
+    private byte[] snapshotBytes;
+    private XSSFWorkbook snapshotWorkbook;
+
+    /**
+     * @param outputDir   シャードのExcelファイルを作成するディレクトリ
+     * @param maxRows     1つのシャードに出力する明細行と集計行の行数の上限
+     * @param maxBytes    1つのシャードに出力する明細行と集計行の推定サイズの上限（バイト）。0以下の場合は制限しない
+     * @param parallelism シャードを並列に作成するスレッド数
+     */
+    public ReportShardWriter(Path outputDir, int maxRows, long maxBytes, int parallelism) {
+        this(outputDir, maxRows, maxBytes, createExecutor(parallelism), true, new Semaphore(parallelism),
+                new ReportCancellationToken());
+    }
+
+    /**
+     * 複数の帳票で共有するスレッドプールと作成の許可を使用して、シャードを作成します。
+     * スレッドプールはクローズで停止しません。
+     *
+     * @param outputDir     シャードのExcelファイルを作成するディレクトリ
+     * @param maxRows       1つのシャードに出力する明細行と集計行の行数の上限
+     * @param maxBytes      1つのシャードに出力する明細行と集計行の推定サイズの上限（バイト）。0以下の場合は制限しない
+     * @param executor          シャードを作成するスレッドプール
+     * @param renderPermits     作成中のシャードの数を制限する許可
+     * @param cancellationToken 期限と取り消しのトークン
+     */
+    public ReportShardWriter(Path outputDir, int maxRows, long maxBytes, ExecutorService executor,
+            Semaphore renderPermits, ReportCancellationToken cancellationToken) {
+        this(outputDir, maxRows, maxBytes, executor, false, renderPermits, cancellationToken);
+    }
+
+    private ReportShardWriter(Path outputDir, int maxRows, long maxBytes, ExecutorService executor,
+            boolean ownsExecutor, Semaphore renderPermits, ReportCancellationToken cancellationToken) {
+        if (maxRows < 1) {
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+            throw new IllegalArgumentException("Invalid shard configuration");
+        }
+        this.outputDir = outputDir;
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.renderPermits = renderPermits;
+        this.cancellationToken = cancellationToken;
+    }
+
+    private static ExecutorService createExecutor(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid shard configuration");
+        }
+        return Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * 指定されたシートに出力する明細行を、シャードにためる出力先を作成します。
+     *
+     * @param sheet 出力先のシート
+     * @return 明細行の出力先
+     */
+    public ReportLineSink createSink(XSSFSheet sheet) {
+        return new ShardLineSink(sheet);
+    }
+
+    /**
+     * 指定されたシートに出力する明細行が、現在のシャードにたまっているかを判定します。
+     *
+     * @param sheet シート
+     * @return たまっている場合はtrue
+     */
+    public boolean hasBufferedLines(XSSFSheet sheet) {
+        for (ShardCell cell : cells) {
+            if (cell.sheet == sheet) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 固定位置のデータの書き込みやシート操作で、ワークブックが変更されたことを記録します。
+     * 最後のシャードに明細行が無い場合でも、変更後のワークブックをシャードとして出力します。
+     */
+    public void markModified() {
+        modified = true;
+        snapshotBytes = null;
+        snapshotWorkbook = null;
+    }
+
+    /**
+     * 現在のシャードに明細行がたまっているか、ワークブックが変更されている場合は、シャードを確定します。
+     *
+     * @param workbook 明細行を出力するワークブック
+     * @throws IOException ワークブックの複製中にエラーが発生した場合、または作成済みのシャードの作成に失敗していた場合
+     */
+    public void flush(XSSFWorkbook workbook) throws IOException {
+        if (!cells.isEmpty() || modified) {
+            closeShard(workbook);
+        }
+    }
+
+    /**
+     * 現在のワークブックとためた明細行からシャードを確定し、別スレッドで作成を開始します。
+     *
+     * <p>
+     * ワークブックはこの時点の内容のスナップショットから複製するため、以降のワークブックの変更は
+     * このシャードには反映されません。削除されたシートにためた明細行は出力しません。
+     * </p>
+     *
+     * @param workbook 明細行を出力するワークブック
+     * @throws IOException ワークブックの複製中にエラーが発生した場合、または作成済みのシャードの作成に失敗していた場合
+     */
+    public void closeShard(XSSFWorkbook workbook) throws IOException {
+        checkFailedShards();
+        try {
+            // 他の帳票のシャードの作成で許可が無い間も、取り消しを確認する
+            do {
+                cancellationToken.throwIfCancelled();
+            } while (!renderPermits.tryAcquire(CANCELLATION_CHECK_MILLIS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for shard rendering");
+        }
+        try {
+            byte[] shardSnapshotBytes = getSnapshotBytes(workbook);
+            // シャードの作成スレッドからは元のワークブックを参照しないよう、シート番号に解決しておく
+            resolveSheetIndexes(workbook, cells);
+            ArrayList<ShardCell> shardCells = cells;
+            shardFutures.add(executor.submit(() -> {
+                try {
+                    return renderShard(shardSnapshotBytes, shardCells);
+                } finally {
+                    renderPermits.release();
+                }
+            }));
+        } catch (IOException | RuntimeException e) {
+            renderPermits.release();
+            throw e;
+        }
+        resetShard();
+    }
+
+    /**
+     * ワークブックのスナップショットを取得します。前回のスナップショットの作成後に
+     * ワークブックが変更されていない場合は、前回のスナップショットを共有します。
+     */
+    private byte[] getSnapshotBytes(XSSFWorkbook workbook) throws IOException {
+        if (snapshotBytes == null || snapshotWorkbook != workbook) {
+            ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            workbook.write(snapshot);
+            snapshotBytes = snapshot.toByteArray();
+            snapshotWorkbook = workbook;
+        }
+        return snapshotBytes;
+    }
+
+    private static void resolveSheetIndexes(XSSFWorkbook workbook, List<ShardCell> shardCells) {
+        IdentityHashMap<XSSFSheet, Integer> sheetIndexes = new IdentityHashMap<>();
+        for (ShardCell cell : shardCells) {
+            cell.sheetIndex = sheetIndexes.computeIfAbsent(cell.sheet, workbook::getSheetIndex);
+            cell.sheet = null;
+        }
+    }
+
+    private void resetShard() {
+        cells = new ArrayList<>();
+        shardLineCount = 0;
+        shardBytes = 0;
+        modified = false;
+    }
+
+    /**
+     * 最後のシャードを作成し、すべてのシャードの作成が終わるまで待ちます。
+     *
+     * <p>
+     * 最後のシャードは複製を作成せず、指定されたワークブックに明細行を書き込んで作成するため、
+     * このメソッドの呼び出し後はワークブックを使用しないこと。
+     * </p>
+     *
+     * @param workbook 明細行を出力するワークブック
+     * @return シャードのExcelファイルのパス（シャードの順）
+     * @throws IOException シャードの作成中にエラーが発生した場合
+     */
+    public List<Path> finish(XSSFWorkbook workbook) throws IOException {
+        cancellationToken.throwIfCancelled();
+        checkFailedShards();
+        Path lastShardFilePath = null;
+        if (!cells.isEmpty() || modified || shardFutures.isEmpty()) {
+            resolveSheetIndexes(workbook, cells);
+            lastShardFilePath = writeShard(workbook, cells);
+            resetShard();
+        }
+        // スナップショットは以降使用しない
+        snapshotBytes = null;
+        snapshotWorkbook = null;
+        ArrayList<Path> shardFilePaths = new ArrayList<>();
+        for (Future<Path> shardFuture : shardFutures) {
+            shardFilePaths.add(getShardFilePath(shardFuture));
+        }
+        if (lastShardFilePath != null) {
+            shardFilePaths.add(lastShardFilePath);
+        }
+        synchronized (this) {
+            finished = true;
+        }
+        return shardFilePaths;
+    }
+
+    /**
+     * 作成が終わったシャードのうち、失敗したものがあれば例外をスローします。
+     */
+    private void checkFailedShards() throws IOException {
+        for (Future<Path> shardFuture : shardFutures) {
+            if (shardFuture.isDone()) {
+                getShardFilePath(shardFuture);
+            }
+        }
+    }
+
+    private Path getShardFilePath(Future<Path> shardFuture) throws IOException {
+        try {
+            while (true) {
+                cancellationToken.throwIfCancelled();
+                try {
+                    return shardFuture.get(CANCELLATION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // 作成中のシャードの終了を待つ間も、取り消しを確認する
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for shard rendering");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Error rendering report shard", cause);
+        }
+    }
+
+    /**
+     * 複製したワークブックに明細行を書き込み、シャードのExcelファイルを作成します。
+     */
+    private Path renderShard(byte[] shardSnapshotBytes, List<ShardCell> shardCells) throws IOException {
+        // クローズ後や取り消し後に開始したシャードは、ワークブックを複製せずに終了する
+        checkNotClosed();
+        cancellationToken.throwIfCancelled();
+        try (InputStream inputStream = new ByteArrayInputStream(shardSnapshotBytes);
+                XSSFWorkbook workbook = new XSSFWorkbookFactory().create(inputStream)) {
+            return writeShard(workbook, shardCells);
+        }
+    }
+
+    /**
+     * ワークブックに明細行を書き込み、シャードのExcelファイルを作成します。
+     * 作成したファイルは、{@link #finish(XSSFWorkbook)} が正常に終わらなかった場合にクローズで削除します。
+     */
+    private Path writeShard(XSSFWorkbook workbook, List<ShardCell> shardCells) throws IOException {
+        Path shardFile = ReportUtility.createReportFile(outputDir);
+        synchronized (this) {
+            if (closed) {
+                // クローズ後に作成を開始したシャードは出力しない
+                Files.deleteIfExists(shardFile);
+                throw new IOException("Report shard writer is closed");
+            }
+            shardFiles.add(shardFile);
+        }
+        try {
+            for (ShardCell cell : shardCells) {
+                cancellationToken.throwIfCancelled();
+                if (cell.sheetIndex < 0) {
+                    // 削除されたシート
+                    continue;
+                }
+                SheetLineSink.setCellValue(workbook.getSheetAt(cell.sheetIndex), cell.rowIndex, cell.columnIndex,
+                        cell.value);
+            }
+            try (OutputStream outputStream = new ReportUtility.CancellableOutputStream(
+                    Files.newOutputStream(shardFile), cancellationToken)) {
+                workbook.write(outputStream);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(shardFile);
+            // POIが例外をラップする場合があるため、取り消しはトークンで判定する
+            cancellationToken.throwIfCancelled();
+            throw e;
+        }
+        synchronized (this) {
+            if (closed && !finished) {
+                // 書き込み中にクローズされた場合は、クローズで削除した後に作成し直したファイルを削除する
+                Files.deleteIfExists(shardFile);
+                throw new IOException("Report shard writer is closed");
+            }
+        }
+        return shardFile;
+    }
+
+    private synchronized void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Report shard writer is closed");
+        }
+    }
+
+    private static long estimateUtf8Length(String value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return length;
+    }
+
+    /**
+     * シャードの作成を終了します。{@link #finish(XSSFWorkbook)} が正常に終わっていない場合は、
+     * 最後のシャードを含めて作成を開始したシャードのExcelファイルを削除します。
+     * 開始前のシャードは作成せずに終了します。共有するスレッドプールの場合は作成中のシャードの終了を待たず、
+     * 作成中のシャードはクローズを検知して自身のファイルを削除します。
+     */
+    @Override
+    public void close() {
+        ArrayList<Path> deleteFiles = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            if (!finished) {
+                deleteFiles.addAll(shardFiles);
+            }
+        }
+        if (ownsExecutor) {
+            // このインスタンスのスレッドプールは、作成中のシャードが終わってファイルを削除するまで待つ
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Path shardFile : deleteFiles) {
+            try {
+                Files.deleteIfExists(shardFile);
+            } catch (IOException e) {
+                // シャードのファイル削除時の例外は無視する
+            }
+        }
+    }
+}
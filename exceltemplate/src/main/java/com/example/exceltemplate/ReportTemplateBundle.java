@@ -0,0 +1,328 @@
+package com.example.exceltemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbookFactory;
+
+import lombok.Getter;
+
+/**
+ * Excelテンプレートと様式定義XMLファイルを事前にコンパイルしたバンドルです。
+ *
+ * <p>
+ * 様式定義XMLの解析結果（フィールド名、出力位置、編集式）、テンプレートの数式の索引
+ * （{@link TemplateFormulaIndex}）、テンプレートExcelファイルの内容を1つのバイナリファイルにまとめ、
+ * 実行時のXML解析と数式の解析を省略します。
+ * バンドルには作成元ファイルのサイズと更新日時が記録され、作成元ファイルが更新されている場合や
+ * 作成元ファイルが存在しない場合は古いバンドルとして扱われます。作成元ファイルを配置せずにバンドルのみを
+ * 配置する場合は、作成元ファイルなしで配置するバンドルとして作成します。
+ * </p>
+ *
+ * <p>
+ * 読み込んだバンドルは {@link #readCached(Path)} でプロセス内にキャッシュし、同じバンドルを使用する帳票では
+ * バンドルファイルを読み込みません。テンプレートExcelファイルの内容はそのまま保持するため、
+ * ワークブックの読み込み（POIによる解析）は帳票ごとに行われます。
+ * </p>
+ *
+ * <p>
+ * バンドルファイルの形式は以下のとおりです。
+ * </p>
+ * <ul>
+ * <li>マジックナンバー、フォーマットバージョン</li>
+ * <li>様式定義XMLファイル名、サイズ、更新日時</li>
+ * <li>テンプレートExcelファイル名、サイズ、更新日時</li>
+ * <li>作成元ファイルなしで配置するバンドルか</li>
+ * <li>フィールド数と、各フィールドのフィールド名、出力位置、編集式、並べ替え・集計の属性</li>
+ * <li>テンプレートの数式の索引</li>
+ * <li>テンプレートExcelファイルの内容</li>
+ * </ul>
+ */
+@Getter
+public class ReportTemplateBundle {
+    /** バンドルファイルの拡張子 */
+    public static final String BUNDLE_FILE_EXTENSION = ".rptbundle";
+    /** バンドルファイルのマジックナンバー（"RPTB"） */
+    private static final int MAGIC = 0x52505442;
+    /** バンドルファイルのフォーマットバージョン。形式を変更した場合は必ず更新すること */
+    static final int FORMAT_VERSION = 3;
+    /** キャッシュするバンドルの数の上限 */
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, ReportTemplateBundle> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, ReportTemplateBundle>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ReportTemplateBundle> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private final String xmlFormFileName;
+    private final long xmlFormFileSize;
+    private final long xmlFormFileLastModified;
+    private final String templateFileName;
+    private final long templateFileSize;
+    private final long templateFileLastModified;
+    /** 作成元ファイルを配置せずに使用するバンドルか */
+    private final boolean deployedWithoutSources;
+    private final HashMap<String, ReportFormatField> reportFormatFieldMap;
+    private final TemplateFormulaIndex formulaIndex;
+    private final byte[] templateBytes;
+
+    private ReportTemplateBundle(String xmlFormFileName, long xmlFormFileSize, long xmlFormFileLastModified,
+            String templateFileName, long templateFileSize, long templateFileLastModified,
+            boolean deployedWithoutSources, HashMap<String, ReportFormatField> reportFormatFieldMap,
+            TemplateFormulaIndex formulaIndex, byte[] templateBytes) {
+        this.xmlFormFileName = xmlFormFileName;
+        this.xmlFormFileSize = xmlFormFileSize;
+        this.xmlFormFileLastModified = xmlFormFileLastModified;
+        this.templateFileName = templateFileName;
+        this.templateFileSize = templateFileSize;
+        this.templateFileLastModified = templateFileLastModified;
+        this.deployedWithoutSources = deployedWithoutSources;
+        this.reportFormatFieldMap = reportFormatFieldMap;
+        this.formulaIndex = formulaIndex;
+        this.templateBytes = templateBytes;
+    }
+
+    /**
+     * 様式定義XMLファイル名とテンプレートExcelファイル名から、バンドルファイル名を作成します。
+     *
+     * <p>例: sample.xml と sample.xlsx の場合は "sample@sample.rptbundle"</p>
+     *
+     * @param xmlFormFileName  様式定義XMLファイル名
+     * @param templateFileName テンプレートExcelファイル名
+     * @return バンドルファイル名
+     */
+    public static String getBundleFileName(String xmlFormFileName, String templateFileName) {
+        return removeExtension(xmlFormFileName) + "@" + removeExtension(templateFileName) + BUNDLE_FILE_EXTENSION;
+    }
+
+    private static String removeExtension(String fileName) {
+        int index = fileName.lastIndexOf('.');
+        return index == -1 ? fileName : fileName.substring(0, index);
+    }
+
+    /**
+     * 様式定義XMLファイルとテンプレートExcelファイルからバンドルを作成します。
+     *
+     * @param xmlFilePath      様式定義XMLファイルのパス
+     * @param templateFilePath テンプレートExcelファイルのパス
+     * @return 作成したバンドル
+     * @throws IOException              ファイルの読み込み中にエラーが発生した場合
+     * @throws IllegalArgumentException ファイルが存在しない場合、またはXMLの解析中にエラーが発生した場合
+     */
+    public static ReportTemplateBundle compile(Path xmlFilePath, Path templateFilePath) throws IOException {
+        return compile(xmlFilePath, templateFilePath, false);
+    }
+
+    /**
+     * 様式定義XMLファイルとテンプレートExcelファイルからバンドルを作成します。
+     *
+     * @param xmlFilePath            様式定義XMLファイルのパス
+     * @param templateFilePath       テンプレートExcelファイルのパス
+     * @param deployedWithoutSources 作成元ファイルを配置せずにバンドルのみを配置する場合はtrue
+     * @return 作成したバンドル
+     * @throws IOException              ファイルの読み込み中にエラーが発生した場合
+     * @throws IllegalArgumentException ファイルが存在しない場合、またはXMLの解析中にエラーが発生した場合
+     */
+    public static ReportTemplateBundle compile(Path xmlFilePath, Path templateFilePath,
+            boolean deployedWithoutSources) throws IOException {
+        if (!Files.exists(templateFilePath)) {
+            // ファイルが存在しない
+            throw new IllegalArgumentException("ファイルが存在しない");
+        }
+        HashMap<String, ReportFormatField> reportFormatFieldMap = ReportUtility.parseReportFormatXml(xmlFilePath);
+        byte[] templateBytes = Files.readAllBytes(templateFilePath);
+        TemplateFormulaIndex formulaIndex;
+        try (InputStream inputStream = new ByteArrayInputStream(templateBytes);
+                XSSFWorkbook workbook = new XSSFWorkbookFactory().create(inputStream)) {
+            formulaIndex = TemplateFormulaIndex.build(workbook);
+        }
+        return new ReportTemplateBundle(
+                xmlFilePath.getFileName().toString(), Files.size(xmlFilePath),
+                Files.getLastModifiedTime(xmlFilePath).toMillis(),
+                templateFilePath.getFileName().toString(), Files.size(templateFilePath),
+                Files.getLastModifiedTime(templateFilePath).toMillis(),
+                deployedWithoutSources, reportFormatFieldMap, formulaIndex, templateBytes);
+    }
+
+    /**
+     * バンドルファイルを読み込みます。
+     *
+     * <p>
+     * マジックナンバーまたはフォーマットバージョンが一致しない場合は、nullを返します。
+     * </p>
+     *
+     * @param bundleFilePath バンドルファイルのパス
+     * @return 読み込んだバンドル。形式が一致しない場合はnull
+     * @throws IOException ファイルの読み込み中にエラーが発生した場合
+     */
+    public static ReportTemplateBundle read(Path bundleFilePath) throws IOException {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(bundleFilePath)))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                // 他の形式のファイル、または古いフォーマットのバンドル
+                return null;
+            }
+            String xmlFormFileName = input.readUTF();
+            long xmlFormFileSize = input.readLong();
+            long xmlFormFileLastModified = input.readLong();
+            String templateFileName = input.readUTF();
+            long templateFileSize = input.readLong();
+            long templateFileLastModified = input.readLong();
+            boolean deployedWithoutSources = input.readBoolean();
+
+            int fieldCount = input.readInt();
+            HashMap<String, ReportFormatField> reportFormatFieldMap = new HashMap<>();
+            for (int i = 0; i < fieldCount; i++) {
+                ReportFormatField reportFormatField = new ReportFormatField();
+                reportFormatField.setFieldName(input.readUTF());
+                reportFormatField.setLocation(input.readUTF());
+                reportFormatField.setFormulaString(input.readUTF());
+                reportFormatField.setKeyNum(input.readInt());
+                reportFormatField.setDescending(input.readBoolean());
+                reportFormatField.setTotalRecName(input.readUTF());
+                reportFormatField.setGroupSuppress(input.readBoolean());
+                reportFormatField.setSuppressLineOnDuplicated(input.readBoolean());
+                reportFormatField.setClearAccumulateCount(input.readBoolean());
+                reportFormatFieldMap.put(reportFormatField.getFieldName(), reportFormatField);
+            }
+
+            TemplateFormulaIndex formulaIndex = TemplateFormulaIndex.read(input);
+            byte[] templateBytes = new byte[input.readInt()];
+            input.readFully(templateBytes);
+            return new ReportTemplateBundle(xmlFormFileName, xmlFormFileSize, xmlFormFileLastModified,
+                    templateFileName, templateFileSize, templateFileLastModified,
+                    deployedWithoutSources, reportFormatFieldMap, formulaIndex, templateBytes);
+        }
+    }
+
+    /**
+     * バンドルファイルを読み込みます。同じバンドルファイルを読み込み済みの場合は、キャッシュしたバンドルを返します。
+     *
+     * <p>
+     * キャッシュはバンドルファイルのパス、サイズ、更新日時をキーとするため、
+     * バンドルファイルを作成し直した場合は新しいバンドルを読み込みます。
+     * </p>
+     *
+     * @param bundleFilePath バンドルファイルのパス
+     * @return 読み込んだバンドル。形式が一致しない場合はnull
+     * @throws IOException ファイルの読み込み中にエラーが発生した場合
+     */
+    public static ReportTemplateBundle readCached(Path bundleFilePath) throws IOException {
+        String cacheKey = bundleFilePath.toAbsolutePath() + "," + Files.size(bundleFilePath) + ","
+                + Files.getLastModifiedTime(bundleFilePath).toMillis();
+        ReportTemplateBundle bundle = CACHE.get(cacheKey);
+        if (bundle == null) {
+            bundle = read(bundleFilePath);
+            if (bundle != null) {
+                CACHE.put(cacheKey, bundle);
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * バンドルをファイルに書き込みます。
+     *
+     * <p>
+     * 同じディレクトリの一時ファイルに書き込んでから置き換えるため、書き込み中のバンドルを読み込むことや、
+     * 書き込みが中断されて壊れたバンドルが残ることはありません。
+     * </p>
+     *
+     * @param bundleFilePath 書き込み先のバンドルファイルのパス
+     * @throws IOException ファイルの書き込み中にエラーが発生した場合
+     */
+    public void write(Path bundleFilePath) throws IOException {
+        Path bundleDir = bundleFilePath.toAbsolutePath().getParent();
+        Path tempFilePath = Files.createTempFile(bundleDir, bundleFilePath.getFileName().toString(), ".tmp");
+        try {
+            writeTo(tempFilePath);
+            Files.move(tempFilePath, bundleFilePath, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFilePath);
+        }
+    }
+
+    private void writeTo(Path bundleFilePath) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(bundleFilePath)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(xmlFormFileName);
+            output.writeLong(xmlFormFileSize);
+            output.writeLong(xmlFormFileLastModified);
+            output.writeUTF(templateFileName);
+            output.writeLong(templateFileSize);
+            output.writeLong(templateFileLastModified);
+            output.writeBoolean(deployedWithoutSources);
+
+            output.writeInt(reportFormatFieldMap.size());
+            for (Map.Entry<String, ReportFormatField> entry : reportFormatFieldMap.entrySet()) {
+                ReportFormatField reportFormatField = entry.getValue();
+                output.writeUTF(entry.getKey());
+                output.writeUTF(nullToEmpty(reportFormatField.getLocation()));
+                output.writeUTF(nullToEmpty(reportFormatField.getFormulaString()));
+                output.writeInt(reportFormatField.getKeyNum());
+                output.writeBoolean(reportFormatField.isDescending());
+                output.writeUTF(nullToEmpty(reportFormatField.getTotalRecName()));
+                output.writeBoolean(reportFormatField.isGroupSuppress());
+                output.writeBoolean(reportFormatField.isSuppressLineOnDuplicated());
+                output.writeBoolean(reportFormatField.isClearAccumulateCount());
+            }
+
+            formulaIndex.write(output);
+            output.writeInt(templateBytes.length);
+            output.write(templateBytes);
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * バンドルが作成元ファイルと一致しているかを判定します。
+     *
+     * <p>
+     * 作成元ファイルが存在する場合は、サイズと更新日時がバンドル作成時と一致するかを確認します。
+     * 作成元ファイルが存在しない場合は、作成元ファイルなしで配置するバンドルとして作成された場合だけ
+     * 一致しているものとみなし、それ以外の場合は作成元ファイルが削除または移動されたものとして古いバンドルとします。
+     * </p>
+     *
+     * @param xmlFilePath      様式定義XMLファイルのパス
+     * @param templateFilePath テンプレートExcelファイルのパス
+     * @return 作成元ファイルが更新されていない場合はtrue
+     * @throws IOException ファイル属性の取得中にエラーが発生した場合
+     */
+    public boolean isUpToDate(Path xmlFilePath, Path templateFilePath) throws IOException {
+        if (!xmlFormFileName.equals(xmlFilePath.getFileName().toString())
+                || !templateFileName.equals(templateFilePath.getFileName().toString())) {
+            return false;
+        }
+        return isSameFile(xmlFilePath, xmlFormFileSize, xmlFormFileLastModified)
+                && isSameFile(templateFilePath, templateFileSize, templateFileLastModified);
+    }
+
+    private boolean isSameFile(Path filePath, long size, long lastModified) throws IOException {
+        if (!Files.exists(filePath)) {
+            return deployedWithoutSources;
+        }
+        return Files.size(filePath) == size && Files.getLastModifiedTime(filePath).toMillis() == lastModified;
+    }
+}
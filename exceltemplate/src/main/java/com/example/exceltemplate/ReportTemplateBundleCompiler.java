@@ -0,0 +1,73 @@
+package com.example.exceltemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 様式定義XMLファイルとテンプレートExcelファイルから {@link ReportTemplateBundle} を作成する
+ * コマンドラインツールです。
+ *
+ * <p>
+ * ビルド時またはデプロイ前に実行し、作成したバンドルファイルを {@code report.bundle.dir} に配置します。
+ * </p>
+ *
+ * <p>
+ * 様式定義XMLファイルとテンプレートExcelファイルを配置せずにバンドルのみを配置する場合は、
+ * {@code --without-sources} を指定します。指定しない場合、作成元ファイルが見つからないバンドルは使用されません。
+ * </p>
+ *
+ * <pre>
+ * 使用方法: ReportTemplateBundleCompiler 様式定義XMLファイル テンプレートExcelファイル 出力ディレクトリ [--without-sources]
+ * </pre>
+ */
+public class ReportTemplateBundleCompiler {
+    /** 作成元ファイルを配置せずにバンドルのみを配置する場合のオプション */
+    private static final String OPTION_WITHOUT_SOURCES = "--without-sources";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 && !(args.length == 4 && OPTION_WITHOUT_SOURCES.equals(args[3]))) {
+            System.err.println("使用方法: ReportTemplateBundleCompiler 様式定義XMLファイル テンプレートExcelファイル 出力ディレクトリ"
+                    + " [" + OPTION_WITHOUT_SOURCES + "]");
+            System.exit(1);
+        }
+        Path bundleFilePath = compile(Paths.get(args[0]), Paths.get(args[1]), Paths.get(args[2]),
+                args.length == 4);
+        System.out.println("バンドルを作成しました: " + bundleFilePath.toAbsolutePath());
+    }
+
+    /**
+     * バンドルを作成し、出力ディレクトリに書き込みます。
+     *
+     * @param xmlFilePath      様式定義XMLファイルのパス
+     * @param templateFilePath テンプレートExcelファイルのパス
+     * @param bundleDir        バンドルファイルの出力ディレクトリ
+     * @return 作成したバンドルファイルのパス
+     * @throws IOException ファイルの読み書き中にエラーが発生した場合
+     */
+    public static Path compile(Path xmlFilePath, Path templateFilePath, Path bundleDir) throws IOException {
+        return compile(xmlFilePath, templateFilePath, bundleDir, false);
+    }
+
+    /**
+     * バンドルを作成し、出力ディレクトリに書き込みます。
+     *
+     * @param xmlFilePath            様式定義XMLファイルのパス
+     * @param templateFilePath       テンプレートExcelファイルのパス
+     * @param bundleDir              バンドルファイルの出力ディレクトリ
+     * @param deployedWithoutSources 作成元ファイルを配置せずにバンドルのみを配置する場合はtrue
+     * @return 作成したバンドルファイルのパス
+     * @throws IOException ファイルの読み書き中にエラーが発生した場合
+     */
+    public static Path compile(Path xmlFilePath, Path templateFilePath, Path bundleDir,
+            boolean deployedWithoutSources) throws IOException {
+        ReportTemplateBundle bundle = ReportTemplateBundle.compile(xmlFilePath, templateFilePath,
+                deployedWithoutSources);
+        Files.createDirectories(bundleDir);
+        Path bundleFilePath = bundleDir.resolve(
+                ReportTemplateBundle.getBundleFileName(bundle.getXmlFormFileName(), bundle.getTemplateFileName()));
+        bundle.write(bundleFilePath);
+        return bundleFilePath;
+    }
+}
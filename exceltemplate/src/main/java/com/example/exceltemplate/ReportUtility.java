@@ -1,27 +1,41 @@
 package com.example.exceltemplate;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.util.CellReference;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbookFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.w3c.dom.Document;
@@ -33,7 +47,33 @@ import com.opencsv.CSVParser;
 import com.opencsv.exceptions.CsvValidationException;
 
 @Component
-public class ReportUtility {
+public class ReportUtility implements DisposableBean {
+    /**
+     * 書き込みのたびに帳票作成の取り消しを確認する出力ストリームです。
+     */
+    static class CancellableOutputStream extends FilterOutputStream {
+        private final ReportCancellationToken cancellationToken;
+
+        CancellableOutputStream(OutputStream out, ReportCancellationToken cancellationToken) {
+            super(out);
+            this.cancellationToken = cancellationToken;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            cancellationToken.throwIfCancelled();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            cancellationToken.throwIfCancelled();
+            out.write(b, off, len);
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReportUtility.class);
+
     private static final String OUTPUT_FORMAT_EXCEL = "EXCEL";
     private static final String OUTPUT_FORMAT_EXCEL_DIRECT = "DIRECT";
 
@@ -43,18 +83,52 @@ public class ReportUtility {
     private String reportXmlDir;
     @Value("${report.template.dir:./testdata/template}")
     private String reportTemplateDir;
+    @Value("${report.bundle.dir:./testdata/bundle}")
+    private String reportBundleDir;
+    @Value("${report.data.spill-threshold-bytes:67108864}")
+    private long spillThresholdBytes;
+    @Value("${report.data.spill-dir:}")
+    private String spillDir;
+    @Value("${report.shard.max-rows:1000000}")
+    private int shardMaxRows;
+    @Value("${report.shard.max-bytes:0}")
+    private long shardMaxBytes;
+    @Value("${report.shard.parallelism:0}")
+    private int shardParallelism;
+    @Value("${report.fill.parallelism:1}")
+    private int fillParallelism;
+    @Value("${report.fill.chunk-lines:10000}")
+    private int fillChunkLines;
+    @Value("${report.formula.recalculate:true}")
+    private boolean formulaRecalculate;
+
+    /** データセクションのセルの値を準備するスレッドプール。並列数が2以上の場合に作成する */
+    private ExecutorService fillExecutor;
+    /** すべての帳票で共有する、シャードを作成するスレッドプールと、作成中のシャードの数を制限する許可 */
+    private ExecutorService shardExecutor;
+    private Semaphore shardRenderPermits;
 
     // 引数で指定されたデータファイル、出力形式に従い、レポートを作成する
     // @param reportDataFile データファイル
     // @param outputFormat 出力形式
     // @return 作成したレポートパス
     public String outputReport(File reportDataFile, String outputFormat) {
+        return outputReport(reportDataFile, outputFormat, new ReportCancellationToken());
+    }
+
+    // 引数で指定されたデータファイル、出力形式に従い、期限と取り消しを確認しながらレポートを作成する
+    // @param reportDataFile データファイル
+    // @param outputFormat 出力形式
+    // @param cancellationToken 期限と取り消しのトークン
+    // @return 作成したレポートパス
+    // @throws ReportCancelledException 取り消された場合、または期限を過ぎた場合（作成途中のファイルは削除する）
+    public String outputReport(File reportDataFile, String outputFormat, ReportCancellationToken cancellationToken) {
         String reportFilePath = null;
         // 出力形式がEXCELならば、Excel形式のレポートを作成する
         // それ以外ならばnullを返す
         if (OUTPUT_FORMAT_EXCEL.equals(outputFormat)) {
             // Excel形式のレポートを作成する処理
-            reportFilePath = createExcelReport(reportDataFile);
+            reportFilePath = createExcelReport(reportDataFile, cancellationToken);
         }
         if (reportFilePath == null || OUTPUT_FORMAT_EXCEL_DIRECT.equals(reportFilePath)) {
             // Excel帳票のテンプレート出力方式以外は従来処理で行う
@@ -63,6 +137,88 @@ public class ReportUtility {
         return reportFilePath;
     }
 
+    // 引数で指定されたデータファイル、出力形式に従い、明細行を複数のワークブックに分割してレポートを作成する
+    // 分割の単位は report.shard.max-rows（行数）と report.shard.max-bytes（推定サイズ）で指定する
+    // @param reportDataFile データファイル
+    // @param outputFormat 出力形式
+    // @return 作成したレポートパスのリスト（シャードの順）
+    public List<String> outputReportShards(File reportDataFile, String outputFormat) {
+        return outputReportShards(reportDataFile, outputFormat, new ReportCancellationToken());
+    }
+
+    // 引数で指定されたデータファイル、出力形式に従い、期限と取り消しを確認しながら、
+    // 明細行を複数のワークブックに分割してレポートを作成する
+    // @param reportDataFile データファイル
+    // @param outputFormat 出力形式
+    // @param cancellationToken 期限と取り消しのトークン
+    // @return 作成したレポートパスのリスト（シャードの順）
+    // @throws ReportCancelledException 取り消された場合、または期限を過ぎた場合（作成済みのシャードは削除する）
+    public List<String> outputReportShards(File reportDataFile, String outputFormat,
+            ReportCancellationToken cancellationToken) {
+        if (!OUTPUT_FORMAT_EXCEL.equals(outputFormat)) {
+            return null;
+        }
+        // Excel帳票のテンプレート出力方式以外はnullを返す
+        List<Path> shardFilePaths = createExcelReportShards(reportDataFile, cancellationToken);
+        if (shardFilePaths == null) {
+            return null;
+        }
+        ArrayList<String> reportFilePaths = new ArrayList<>();
+        for (Path shardFilePath : shardFilePaths) {
+            reportFilePaths.add(shardFilePath.toAbsolutePath().toString());
+        }
+        return reportFilePaths;
+    }
+
+    // 引数で指定されたデータファイル、出力形式に従い、明細行を複数のワークブックに分割してレポートを作成し、
+    // シャードの順にZIP形式で出力ストリームに書き込む。書き込んだシャードのファイルは削除する
+    // @param reportDataFile データファイル
+    // @param outputFormat 出力形式
+    // @param outputStream 出力先のストリーム（このメソッドではクローズしない）
+    // @return レポートを作成して書き込んだ場合はtrue
+    // @throws IOException 出力ストリームへの書き込み中にエラーが発生した場合
+    public boolean outputReportShardsAsZip(File reportDataFile, String outputFormat, OutputStream outputStream)
+            throws IOException {
+        return outputReportShardsAsZip(reportDataFile, outputFormat, outputStream, new ReportCancellationToken());
+    }
+
+    // 引数で指定されたデータファイル、出力形式に従い、期限と取り消しを確認しながら、
+    // 明細行を複数のワークブックに分割してレポートを作成し、シャードの順にZIP形式で出力ストリームに書き込む。
+    // 書き込んだシャードのファイルは、取り消された場合も削除する
+    // @param reportDataFile データファイル
+    // @param outputFormat 出力形式
+    // @param outputStream 出力先のストリーム（このメソッドではクローズしない）
+    // @param cancellationToken 期限と取り消しのトークン
+    // @return レポートを作成して書き込んだ場合はtrue
+    // @throws IOException 出力ストリームへの書き込み中にエラーが発生した場合
+    // @throws ReportCancelledException 取り消された場合、または期限を過ぎた場合（出力ストリームの内容は不完全になる）
+    public boolean outputReportShardsAsZip(File reportDataFile, String outputFormat, OutputStream outputStream,
+            ReportCancellationToken cancellationToken) throws IOException {
+        List<String> reportFilePaths = outputReportShards(reportDataFile, outputFormat, cancellationToken);
+        if (reportFilePaths == null) {
+            return false;
+        }
+        try {
+            ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+            // xlsxは圧縮済みのため、再圧縮しない
+            zipOutputStream.setLevel(Deflater.NO_COMPRESSION);
+            // ZIPのエントリはクローズしないよう、書き込みの取り消しの確認はラップしたストリームで行う
+            OutputStream entryOutputStream = new CancellableOutputStream(zipOutputStream, cancellationToken);
+            for (int i = 0; i < reportFilePaths.size(); i++) {
+                cancellationToken.throwIfCancelled();
+                zipOutputStream.putNextEntry(new ZipEntry(String.format("report_%04d.xlsx", i + 1)));
+                Files.copy(Paths.get(reportFilePaths.get(i)), entryOutputStream);
+                zipOutputStream.closeEntry();
+            }
+            zipOutputStream.finish();
+        } finally {
+            for (String reportFilePath : reportFilePaths) {
+                Files.deleteIfExists(Paths.get(reportFilePath));
+            }
+        }
+        return true;
+    }
+
     /**
      * 指定されたデータファイルを基にExcel帳票を作成し、保存された帳票ファイルのパスを返します。
      *
@@ -72,20 +228,33 @@ public class ReportUtility {
      * Windows環境では、POSIXファイル権限の設定に関する例外が無視されます。
      * </p>
      *
-     * @param reportDataFile レポートデータが含まれる入力ファイル
+     * <p>
+     * データセクションの区切り、データ行の読み込み、Excelファイルの書き込み中に期限と取り消しを確認し、
+     * 取り消された場合は書き込み途中のExcelファイルを削除して {@link ReportCancelledException} をスローします。
+     * </p>
+     *
+     * @param reportDataFile    レポートデータが含まれる入力ファイル
+     * @param cancellationToken 期限と取り消しのトークン
      * @return 保存されたExcelレポートファイルの絶対パス。エラーが発生した場合はnullを返します。
-     * @throws IOException            入出力エラーが発生した場合
-     * @throws CsvValidationException CSVデータの検証エラーが発生した場合
+     * @throws IOException              入出力エラーが発生した場合
+     * @throws CsvValidationException   CSVデータの検証エラーが発生した場合
+     * @throws ReportCancelledException 取り消された場合、または期限を過ぎた場合
      */
-    private String createExcelReport(File reportDataFile) {
+    private String createExcelReport(File reportDataFile, ReportCancellationToken cancellationToken) {
         String reportFilePath = null;
         XSSFWorkbook workbook = null;
+        WrittenCellSet writtenCells = new WrittenCellSet();
+        SheetFillQueue sheetFillQueue = createSheetFillQueue(writtenCells);
 
         // データファイルを関数部→データ部→…と読み込むループ
         try (BufferedReader reader = Files.newBufferedReader(reportDataFile.toPath())) {
             ReportDataFileProcessor processor = new ReportDataFileProcessor();
             processor.setReportDataFileReader(reader);
+            processor.setWrittenCellSet(writtenCells);
+            processor.setSheetFillQueue(sheetFillQueue);
+            processor.setCancellationToken(cancellationToken);
             while (true) {
+                cancellationToken.throwIfCancelled();
                 readReportDataFileFunctionSection(processor);
                 workbook = processor.getWorkbook();
                 if (workbook == null) {
@@ -95,20 +264,28 @@ public class ReportUtility {
                     break;
                 }
             }
-            // Excelファイルを保存する
+            // 準備したセルの値を適用し、影響を受ける数式を再計算してから、Excelファイルを保存する
+            processor.getSheetFillQueue().commitAll();
+            FormulaRecalculator formulaRecalculator = processor.getFormulaRecalculator();
+            if (workbook != null && formulaRecalculator != null) {
+                formulaRecalculator.recalculate(workbook, writtenCells, cancellationToken);
+            }
             if (workbook != null) {
-                // reportOutputDirにすべてのユーザが読み書き可能なTempFileを作成する
-                Path reportFile = Files.createTempFile(Paths.get(reportOutputDir), "report_", ".xlsx");
-                try {
-                    Files.setPosixFilePermissions(reportFile, PosixFilePermissions.fromString("rw-rw-rw-"));
-                } catch (UnsupportedOperationException e) {
-                    // Windowsで発生するUnsupportedOperationExceptionを無視する
-                }
-                try (OutputStream outputStream = Files.newOutputStream(reportFile)) {
+                Path reportFile = createReportFile(Paths.get(reportOutputDir));
+                try (OutputStream outputStream = new CancellableOutputStream(Files.newOutputStream(reportFile),
+                        cancellationToken)) {
                     workbook.write(outputStream);
                     reportFilePath = reportFile.toAbsolutePath().toString();
                 } catch (IOException e) {
+                    // 書き込み途中のファイルは削除する
+                    Files.deleteIfExists(reportFile);
+                    cancellationToken.throwIfCancelled();
                     throw new IllegalArgumentException("Error writing Excel file", e);
+                } catch (RuntimeException e) {
+                    // POIが例外をラップする場合があるため、取り消しはトークンで判定する
+                    Files.deleteIfExists(reportFile);
+                    cancellationToken.throwIfCancelled();
+                    throw e;
                 }
             }
         } catch (IOException e) {
@@ -116,6 +293,8 @@ public class ReportUtility {
         } catch (CsvValidationException e) {
             e.printStackTrace();
         } finally {
+            // エラーや取り消しで中断した場合は、適用していない準備を取り消す
+            sheetFillQueue.cancelAll();
             if (workbook != null) {
                 try {
                     workbook.close();
@@ -127,6 +306,152 @@ public class ReportUtility {
         return reportFilePath;
     }
 
+    /**
+     * 指定されたデータファイルを基に、明細行を複数のワークブック（シャード）に分割してExcel帳票を作成し、
+     * 保存されたシャードのファイルのパスを返します。
+     *
+     * <p>
+     * データファイルの処理は {@link #createExcelReport(File, ReportCancellationToken)} と同じですが、明細行は {@link ReportShardWriter} に
+     * ためて、シャードごとに別スレッドでExcelファイルを作成します。
+     * エラーが発生した場合や取り消された場合は、作成済みのシャードのファイルを削除します。
+     * </p>
+     *
+     * <p>
+     * 明細行はシャードのワークブックに直接書き込むため、書き込んだセルを記録せず、
+     * 数式の再計算（{@code report.formula.recalculate}）は行いません。テンプレートに保存されていた計算結果のままとなります。
+     * </p>
+     *
+     * @param reportDataFile    レポートデータが含まれる入力ファイル
+     * @param cancellationToken 期限と取り消しのトークン
+     * @return シャードのファイルのパス（シャードの順）。Excel帳票のテンプレート出力方式以外の場合、
+     *         またはエラーが発生した場合はnullを返します。
+     * @throws ReportCancelledException 取り消された場合、または期限を過ぎた場合
+     */
+    private List<Path> createExcelReportShards(File reportDataFile, ReportCancellationToken cancellationToken) {
+        XSSFWorkbook workbook = null;
+        // 書き込んだセルを記録するセットを渡さないため、数式の再計算は行わない
+        SheetFillQueue sheetFillQueue = createSheetFillQueue(null);
+        if (formulaRecalculate) {
+            LOGGER.info("シャード出力では数式を再計算しません: {}", reportDataFile);
+        }
+
+        // データファイルを関数部→データ部→…と読み込むループ
+        try (BufferedReader reader = Files.newBufferedReader(reportDataFile.toPath());
+                ReportShardWriter shardWriter = createReportShardWriter(cancellationToken)) {
+            ReportDataFileProcessor processor = new ReportDataFileProcessor();
+            processor.setReportDataFileReader(reader);
+            processor.setSheetFillQueue(sheetFillQueue);
+            processor.setReportShardWriter(shardWriter);
+            processor.setCancellationToken(cancellationToken);
+            while (true) {
+                cancellationToken.throwIfCancelled();
+                readReportDataFileFunctionSection(processor);
+                workbook = processor.getWorkbook();
+                if (workbook == null) {
+                    return null;
+                }
+                if (!readReportDataFileDataSection(processor)) {
+                    break;
+                }
+            }
+            processor.getSheetFillQueue().commitAll();
+            return shardWriter.finish(workbook);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (CsvValidationException e) {
+            e.printStackTrace();
+        } finally {
+            // エラーや取り消しで中断した場合は、適用していない準備を取り消す
+            sheetFillQueue.cancelAll();
+            if (workbook != null) {
+                try {
+                    workbook.close();
+                } catch (IOException ex) {
+                    // Excelファイルクローズ時の例外は無視する
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * データセクションのセルの値を準備するキューを作成します。
+     *
+     * <p>
+     * 並列数（{@code report.fill.parallelism}、0の場合はCPUコア数）が2以上の場合は、並列数のスレッドを持つ
+     * このクラスのスレッドプールで準備を並列に実行し、1（既定値）の場合は呼び出し元のスレッドで準備します。
+     * スレッドプールはすべての帳票作成で共有し、{@link #destroy()} で停止します。
+     * 並列に行うのはCSVデータ行の解析と値の準備だけで、ワークブックへの書き込みは呼び出し元のスレッドで順に行います。
+     * </p>
+     *
+     * @param writtenCells 適用時に書き込んだセルを記録するセット。記録しない場合はnull
+     * @return セルの値を準備するキュー
+     */
+    private SheetFillQueue createSheetFillQueue(WrittenCellSet writtenCells) {
+        int parallelism = fillParallelism > 0 ? fillParallelism : Runtime.getRuntime().availableProcessors();
+        Executor executor = parallelism > 1 ? getFillExecutor(parallelism) : Runnable::run;
+        return new SheetFillQueue(executor, parallelism, writtenCells);
+    }
+
+    /**
+     * 明細行をシャードに分割して出力するライタを作成します。
+     *
+     * <p>
+     * シャードはすべての帳票で共有するスレッドプールで作成し、作成中のシャードの数は、同時に作成する帳票の数によらず
+     * 並列数（{@code report.shard.parallelism}、0の場合はCPUコア数）までに制限します。
+     * </p>
+     *
+     * @param cancellationToken 期限と取り消しのトークン
+     * @return シャードのライタ
+     */
+    private synchronized ReportShardWriter createReportShardWriter(ReportCancellationToken cancellationToken) {
+        if (shardExecutor == null) {
+            int parallelism = shardParallelism > 0 ? shardParallelism : Runtime.getRuntime().availableProcessors();
+            shardExecutor = Executors.newFixedThreadPool(parallelism);
+            shardRenderPermits = new Semaphore(parallelism);
+        }
+        return new ReportShardWriter(Paths.get(reportOutputDir), shardMaxRows, shardMaxBytes, shardExecutor,
+                shardRenderPermits, cancellationToken);
+    }
+
+    private synchronized ExecutorService getFillExecutor(int parallelism) {
+        if (fillExecutor == null) {
+            fillExecutor = Executors.newFixedThreadPool(parallelism);
+        }
+        return fillExecutor;
+    }
+
+    /**
+     * セルの値を準備するスレッドプールと、シャードを作成するスレッドプールを停止します。
+     */
+    @Override
+    public synchronized void destroy() {
+        if (fillExecutor != null) {
+            fillExecutor.shutdownNow();
+        }
+        if (shardExecutor != null) {
+            shardExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 帳票ファイルを作成するディレクトリに、すべてのユーザが読み書き可能な一時ファイルを作成します。
+     * Windows環境では、POSIXファイル権限の設定に関する例外が無視されます。
+     *
+     * @param reportOutputDir 帳票ファイルを作成するディレクトリ
+     * @return 作成した一時ファイルのパス
+     * @throws IOException 一時ファイルの作成中にエラーが発生した場合
+     */
+    static Path createReportFile(Path reportOutputDir) throws IOException {
+        Path reportFile = Files.createTempFile(reportOutputDir, "report_", ".xlsx");
+        try {
+            Files.setPosixFilePermissions(reportFile, PosixFilePermissions.fromString("rw-rw-rw-"));
+        } catch (UnsupportedOperationException e) {
+            // Windowsで発生するUnsupportedOperationExceptionを無視する
+        }
+        return reportFile;
+    }
+
     /**
      * レポートデータファイルの関数セクションを読み込み、処理を行うメソッドです。
      * 
@@ -157,6 +482,10 @@ public class ReportUtility {
      * <li><code>XSSD</code>: 指定されたシートを削除します。</li>
      * </ul>
      * 
+     * <p>
+     * XSSA、XSSC、XSSDは {@link SheetOperationPlan} に記録し、関数セクションの終わりに最適化してから適用します。
+     * </p>
+     * 
      * @param processor レポートデータファイルの処理を行う {@link ReportDataFileProcessor} オブジェクト
      * @throws IOException              ファイルの読み込み中にエラーが発生した場合
      * @throws IllegalArgumentException 入力データの形式が不正、または未対応のコマンドや関数名が指定された場合
@@ -171,7 +500,9 @@ public class ReportUtility {
         }
 
         // 関数セクションの最後の行である<end>の行までを読み込む
+        ReportCancellationToken cancellationToken = processor.getCancellationToken();
         while (!(line = reader.readLine()).equals("<end>")) {
+            cancellationToken.throwIfCancelled();
             // 1行が"関数名=パラメータ"形式のため、関数名とパラメータに分割する
             String[] functionAndParam = line.split("=");
             if (functionAndParam.length < 2) {
@@ -215,92 +546,56 @@ public class ReportUtility {
                             // commandParams[0]をテンプレートExcelファイル名として取得する
                             String templateExcelFileName = commandParams[0];
                             Path templateExcelFilePath = Paths.get(reportTemplateDir, templateExcelFileName);
-                            if (!Files.exists(templateExcelFilePath)) {
-                                // ファイルが存在しない
-                                throw new IllegalArgumentException("ファイルが存在しない");
-                            }
 
-                            // Excelファイルを読み込む
+                            // コンパイル済みのバンドルがあれば、テンプレートと様式定義をバンドルから読み込む
                             XSSFWorkbookFactory workbookFactory = new XSSFWorkbookFactory();
-                            try (InputStream inputStream = Files.newInputStream(templateExcelFilePath)) {
-                                workbook = workbookFactory.create(inputStream);
-                            } catch (IOException e) {
-                                throw new IllegalArgumentException("Invalid Excel file format", e);
+                            ReportTemplateBundle bundle = loadReportTemplateBundle(processor, templateExcelFileName);
+                            if (bundle != null) {
+                                try (InputStream inputStream = new ByteArrayInputStream(bundle.getTemplateBytes())) {
+                                    workbook = workbookFactory.create(inputStream);
+                                } catch (IOException e) {
+                                    throw new IllegalArgumentException("Invalid Excel file format", e);
+                                }
+                                processor.setReportFormatFieldMap(bundle.getReportFormatFieldMap());
+                            } else {
+                                if (!Files.exists(templateExcelFilePath)) {
+                                    // ファイルが存在しない
+                                    throw new IllegalArgumentException("ファイルが存在しない");
+                                }
+
+                                // Excelファイルを読み込む
+                                try (InputStream inputStream = Files.newInputStream(templateExcelFilePath)) {
+                                    workbook = workbookFactory.create(inputStream);
+                                } catch (IOException e) {
+                                    throw new IllegalArgumentException("Invalid Excel file format", e);
+                                }
                             }
                             workbook.setActiveSheet(0);
+                            // 読み込む前のワークブックに、準備したセルの値を適用しておく
+                            processor.getSheetFillQueue().commitAll();
+                            setUpFormulaRecalculator(processor, workbook, templateExcelFilePath, bundle);
+                            ReportShardWriter shardWriter = processor.getReportShardWriter();
+                            if (shardWriter != null) {
+                                // 読み込む前のワークブックに出力した内容は、前のシャードとして確定する
+                                if (processor.getWorkbook() != null) {
+                                    shardWriter.flush(processor.getWorkbook());
+                                }
+                                shardWriter.markModified();
+                            }
                             processor.setWorkbook(workbook);
+                            // 読み込む前のワークブックに対するシート操作は破棄する
+                            processor.setSheetOperationPlan(null);
                             break;
                         case "XSSA":
-                            workbook = processor.getWorkbook();
-                            if (commandParams[0].startsWith("NAME=")) {
-                                // commandParams[0]を"NAME=シート名"形式のため、分割してシート名を取得する
-                                String activateSheetName = commandParams[0].substring("NAME=".length());
-                                int activateSheetNo = workbook.getSheetIndex(activateSheetName);
-                                if (activateSheetNo == -1) {
-                                    // シートが存在しない
-                                    throw new IllegalArgumentException("シートが存在しない");
-                                }
-                                workbook.setActiveSheet(activateSheetNo);
-                            } else if (commandParams[0].startsWith("NO=")) {
-                                // commandParams[0]を"NO=シート番号"形式のため、分割してシート番号を取得する
-                                int activateSheetNo = Integer
-                                        .parseInt(commandParams[0].substring("NO=".length()));
-                                workbook.setActiveSheet(activateSheetNo);
-                            } else {
-                                // フォーマットエラー
-                                throw new IllegalArgumentException("フォーマットエラー");
-                            }
+                            // シート操作はすぐには適用せず、実行計画に記録する
+                            getSheetOperationPlan(processor).activate(commandParams[0]);
                             break;
                         case "XSSC":
-                            workbook = processor.getWorkbook();
-                            int fromSheetNo = -1;
-                            if (commandParams[0].startsWith("NAME=")) {
-                                // commandParams[0]を"NAME=シート名"形式のため、分割してシート名を取得する
-                                String fromSheetName = commandParams[0].substring("NAME=".length());
-                                fromSheetNo = workbook.getSheetIndex(fromSheetName);
-                                if (fromSheetNo == -1) {
-                                    // シートが存在しない
-                                    throw new IllegalArgumentException("シートが存在しない");
-                                }
-                            } else if (commandParams[0].startsWith("NO=")) {
-                                // commandParams[0]を"NO=シート番号"形式のため、分割してシート番号を取得する
-                                fromSheetNo = Integer.parseInt(commandParams[0].substring("NO=".length()));
-                            } else {
-                                // フォーマットエラー
-                                throw new IllegalArgumentException("フォーマットエラー");
-                            }
-
-                            if (commandParams[1].startsWith("CHANGE=")) {
-                                // commandParams[1]を"CHANGE=シート名"形式のため、分割してシート名を取得する
-                                String toSheetName = commandParams[1].substring("CHANGE=".length());
-                                XSSFSheet sheet = workbook.cloneSheet(fromSheetNo, toSheetName);
-                                workbook.setActiveSheet(workbook.getSheetIndex(sheet));
-                            } else {
-                                // フォーマットエラー
-                                throw new IllegalArgumentException("フォーマットエラー");
-                            }
+                            getSheetOperationPlan(processor).clone(commandParams[0], commandParams[1]);
                             break;
 
                         case "XSSD":
-                            workbook = processor.getWorkbook();
-                            int deleteSheetNo = -1;
-                            if (commandParams[0].startsWith("NAME=")) {
-                                // commandParams[0]を"NAME=シート名"形式のため、分割してシート名を取得する
-                                String deleteSheetName = commandParams[0].substring("NAME=".length());
-                                deleteSheetNo = workbook.getSheetIndex(deleteSheetName);
-                                if (deleteSheetNo == -1) {
-                                    // シートが存在しない
-                                    throw new IllegalArgumentException("シートが存在しない");
-                                }
-                            } else if (commandParams[0].startsWith("NO=")) {
-                                // commandParams[0]を"NO=シート番号"形式のため、分割してシート番号を取得する
-                                deleteSheetNo = Integer
-                                        .parseInt(commandParams[0].substring("NO=".length()));
-                            } else {
-                                // フォーマットエラー
-                                throw new IllegalArgumentException("フォーマットエラー");
-                            }
-                            workbook.removeSheetAt(deleteSheetNo);
+                            getSheetOperationPlan(processor).delete(commandParams[0]);
                             break;
 
                         default:
@@ -313,6 +608,167 @@ public class ReportUtility {
                     throw new IllegalArgumentException("未対応の関数名");
             }
         }
+
+        // 記録したシート操作を最適化して適用する
+        SheetOperationPlan sheetOperationPlan = processor.getSheetOperationPlan();
+        if (sheetOperationPlan != null) {
+            commitFillsBeforeClone(processor, sheetOperationPlan);
+            ReportShardWriter shardWriter = processor.getReportShardWriter();
+            if (shardWriter != null) {
+                closeShardBeforeClone(processor, sheetOperationPlan);
+                shardWriter.markModified();
+            }
+            sheetOperationPlan.apply();
+            FormulaRecalculator formulaRecalculator = processor.getFormulaRecalculator();
+            if (formulaRecalculator != null) {
+                formulaRecalculator.addClonedSheets(sheetOperationPlan.getClonedSheets(),
+                        processor.getWrittenCellSet());
+            }
+            processor.setSheetOperationPlan(null);
+        }
+    }
+
+    /**
+     * 読み込んだテンプレートの数式の索引を取得し、書き込んだセルに依存する数式を再計算する準備をします。
+     *
+     * <p>
+     * バンドルを使用する場合はバンドルに保存された索引を使用します。それ以外の場合、索引は
+     * テンプレートExcelファイルのパス、サイズ、更新日時をキーとしてキャッシュし、
+     * 同じテンプレートを使用する帳票では作成しません。シャード出力の場合、
+     * または数式の再計算（{@code report.formula.recalculate}）が無効な場合は何もしません。
+     * </p>
+     *
+     * @param processor             {@link ReportDataFileProcessor} のインスタンス
+     * @param workbook              テンプレートを読み込んだ直後のワークブック
+     * @param templateExcelFilePath テンプレートExcelファイルのパス
+     * @param bundle                テンプレートを読み込んだバンドル。バンドルを使用しない場合はnull
+     * @throws IOException テンプレートExcelファイルの属性の取得中にエラーが発生した場合
+     */
+    private void setUpFormulaRecalculator(ReportDataFileProcessor processor, XSSFWorkbook workbook,
+            Path templateExcelFilePath, ReportTemplateBundle bundle) throws IOException {
+        WrittenCellSet writtenCells = processor.getWrittenCellSet();
+        if (writtenCells == null) {
+            // シャード出力では書き込んだセルを記録しないため、再計算しない
+            return;
+        }
+        // 読み込む前のワークブックに書き込んだセルは、再計算の対象にしない
+        writtenCells.clear();
+        processor.setFormulaRecalculator(null);
+        if (!formulaRecalculate) {
+            return;
+        }
+        TemplateFormulaIndex formulaIndex;
+        if (bundle != null) {
+            formulaIndex = bundle.getFormulaIndex();
+        } else {
+            String cacheKey = templateExcelFilePath.toAbsolutePath() + "," + Files.size(templateExcelFilePath) + ","
+                    + Files.getLastModifiedTime(templateExcelFilePath).toMillis();
+            formulaIndex = TemplateFormulaIndex.get(cacheKey, workbook);
+        }
+        if (formulaIndex.size() > 0) {
+            processor.setFormulaRecalculator(new FormulaRecalculator(formulaIndex, workbook));
+        }
+    }
+
+    /**
+     * 準備中のセルの値があるシートが複製される場合は、複製にも値が含まれるよう、シート操作の前に適用します。
+     * 適用はデータセクションの順に行うため、準備中のすべてのデータセクションを適用します。
+     *
+     * @param processor          {@link ReportDataFileProcessor} のインスタンス
+     * @param sheetOperationPlan 適用するシート操作の実行計画
+     * @throws IOException データセクションの準備中にエラーが発生した場合
+     */
+    private void commitFillsBeforeClone(ReportDataFileProcessor processor, SheetOperationPlan sheetOperationPlan)
+            throws IOException {
+        SheetFillQueue sheetFillQueue = processor.getSheetFillQueue();
+        XSSFWorkbook workbook = processor.getWorkbook();
+        for (String sheetName : sheetOperationPlan.getCloneSourceSheetNames()) {
+            if (sheetFillQueue.hasPendingFills(workbook.getSheet(sheetName))) {
+                sheetFillQueue.commitAll();
+                return;
+            }
+        }
+    }
+
+    /**
+     * シャードにためた明細行を出力したシートが複製される場合は、シート操作の前にシャードを確定します。
+     *
+     * <p>
+     * ためた明細行は複製したシートには含まれないため、複製元のシートに出力した明細行は
+     * 複製前のワークブックのシャードとして出力します。
+     * </p>
+     *
+     * @param processor          {@link ReportDataFileProcessor} のインスタンス
+     * @param sheetOperationPlan 適用するシート操作の実行計画
+     * @throws IOException シャードの確定中にエラーが発生した場合
+     */
+    private void closeShardBeforeClone(ReportDataFileProcessor processor, SheetOperationPlan sheetOperationPlan)
+            throws IOException {
+        ReportShardWriter shardWriter = processor.getReportShardWriter();
+        XSSFWorkbook workbook = processor.getWorkbook();
+        for (String sheetName : sheetOperationPlan.getCloneSourceSheetNames()) {
+            if (shardWriter.hasBufferedLines(workbook.getSheet(sheetName))) {
+                // シャードの確定でワークブックを複製するため、準備したセルの値を先に適用する
+                processor.getSheetFillQueue().commitAll();
+                shardWriter.closeShard(workbook);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 関数セクションのシート操作を記録する実行計画を取得します。
+     * 実行計画がまだ作成されていない場合は、現在のワークブックのシート構成から作成します。
+     *
+     * @param processor {@link ReportDataFileProcessor} のインスタンスで、ワークブックと実行計画を含みます。
+     * @return シート操作の実行計画
+     */
+    private SheetOperationPlan getSheetOperationPlan(ReportDataFileProcessor processor) {
+        SheetOperationPlan sheetOperationPlan = processor.getSheetOperationPlan();
+        if (sheetOperationPlan == null) {
+            sheetOperationPlan = new SheetOperationPlan(processor.getWorkbook());
+            processor.setSheetOperationPlan(sheetOperationPlan);
+        }
+        return sheetOperationPlan;
+    }
+
+    /**
+     * 様式定義XMLファイルとテンプレートExcelファイルに対応するコンパイル済みバンドルを読み込みます。
+     *
+     * <p>
+     * バンドルファイルが存在しない場合、形式やバージョンが一致しない場合、作成元ファイルが
+     * バンドル作成後に更新されている場合、読み込みに失敗した場合はnullを返し、
+     * 呼び出し元は従来どおりテンプレートExcelファイルと様式定義XMLファイルを読み込みます。
+     * </p>
+     *
+     * @param processor             {@link ReportDataFileProcessor} のインスタンスで、様式定義XMLファイル名を含みます。
+     * @param templateExcelFileName テンプレートExcelファイル名
+     * @return 有効なバンドル。使用できるバンドルが無い場合はnull
+     */
+    private ReportTemplateBundle loadReportTemplateBundle(ReportDataFileProcessor processor,
+            String templateExcelFileName) {
+        String xmlFormFileName = processor.getXmlFormFileName();
+        if (xmlFormFileName == null) {
+            // VrSetFormより前にXSFNが指定された場合は、バンドルを特定できない
+            return null;
+        }
+        Path bundleFilePath = Paths.get(reportBundleDir,
+                ReportTemplateBundle.getBundleFileName(xmlFormFileName, templateExcelFileName));
+        if (!Files.exists(bundleFilePath)) {
+            return null;
+        }
+        try {
+            ReportTemplateBundle bundle = ReportTemplateBundle.readCached(bundleFilePath);
+            if (bundle == null || !bundle.isUpToDate(Paths.get(reportXmlDir, xmlFormFileName),
+                    Paths.get(reportTemplateDir, templateExcelFileName))) {
+                // 古いバンドルは使用しない
+                return null;
+            }
+            return bundle;
+        } catch (IOException e) {
+            // 壊れたバンドルは使用せず、元のファイルを読み込む
+            return null;
+        }
     }
 
     /**
@@ -326,6 +782,13 @@ public class ReportUtility {
      * 値を設定します。
      * </p>
      * 
+     * <p>
+     * CSVデータ行の解析と値の準備は {@link SheetFillQueue} で他のデータセクションと並列に行い、
+     * シートへの書き込みは後でデータセクションの順にまとめて行います。
+     * CSVデータ行は {@code report.fill.chunk-lines} 行ごとに分けて準備を開始するため、
+     * データセクション全体をメモリにためることはありません。
+     * </p>
+     * 
      * @param processor {@link ReportDataFileProcessor} のインスタンスで、レポートデータ
      *                  ファイルリーダー、ワークブック、およびその他の必要なリソースに
      *                  アクセスを提供します。
@@ -348,49 +811,233 @@ public class ReportUtility {
             return false;
         }
 
+        // 並べ替え・集計などが指定されたフィールドがある場合は、レコードをためてから明細行として出力する
+        ReportListWriter listWriter = ReportListWriter.create(reportFormatFieldMap, header);
+        if (listWriter != null) {
+            return readReportDataFileListSection(processor, csvParser, listWriter, sheet);
+        }
+        ReportShardWriter shardWriter = processor.getReportShardWriter();
+        if (shardWriter != null) {
+            // 固定位置のデータはワークブックに直接書き込み、以降のすべてのシャードに含める
+            shardWriter.markModified();
+        }
+
         // CSVデータ行を読み込み、ファイルが終了するか、<start>行が見つかるまでループする
         // 行を読み込む前にmarkしておき、<start>行が見つかった場合はresetする
+        // 読み込んだ行の解析とセルの値の準備は、一定の行数ごとに他のデータセクションと並列に行う
+        ReportCancellationToken cancellationToken = processor.getCancellationToken();
+        int chunkLines = Math.max(1, fillChunkLines);
+        ArrayList<String> lines = new ArrayList<>();
+        boolean hasNextSection;
         while (true) {
+            cancellationToken.throwIfCancelled();
             reader.mark(1024); // 1024バイトまでmarkする
             String line = reader.readLine();
             if (line == null) {
                 // ファイルの終端
-                return false;
+                hasNextSection = false;
+                break;
             }
-            // <start>行が見つかった場合は、markした位置に戻してtrueを返す
+            // <start>行が見つかった場合は、markした位置に戻す
             if ("<start>".equals(line)) {
                 reader.reset();
-                return true;
+                hasNextSection = true;
+                break;
+            }
+            lines.add(line);
+            if (lines.size() >= chunkLines) {
+                submitReportDataFileDataSection(processor, sheet, header, lines, reportFormatFieldMap);
+                lines = new ArrayList<>();
+            }
+        }
+        if (!lines.isEmpty()) {
+            submitReportDataFileDataSection(processor, sheet, header, lines, reportFormatFieldMap);
+        }
+        return hasNextSection;
+    }
+
+    /**
+     * データセクションのCSVデータ行の一部について、セルの値の準備を開始します。
+     * 準備中のデータセクションの数が上限に達している場合は、最も古い準備を適用してから開始します。
+     */
+    private static void submitReportDataFileDataSection(ReportDataFileProcessor processor, XSSFSheet sheet,
+            String[] header, List<String> lines, HashMap<String, ReportFormatField> reportFormatFieldMap)
+            throws IOException {
+        ReportCancellationToken cancellationToken = processor.getCancellationToken();
+        processor.getSheetFillQueue().submit(sheet,
+                () -> prepareReportDataFileDataSection(sheet, header, lines, reportFormatFieldMap,
+                        cancellationToken));
+    }
+
+    /**
+     * データセクションのCSVデータ行を解析し、フィールド名に対応する位置に書き込む値を準備します。
+     * 各行は同じ位置に書き込むため、セルごとに最後の行の値だけを準備します。
+     * ワークブックは操作しないため、別スレッドで実行できます。
+     *
+     * @param sheet                値を書き込むシート
+     * @param header               CSVヘッダ行
+     * @param lines                CSVデータ行
+     * @param reportFormatFieldMap 様式定義フィールドのマップ
+     * @param cancellationToken    期限と取り消しのトークン
+     * @return 書き込む値をためたバッファ
+     * @throws UncheckedIOException     CSVデータの解析中にエラーが発生した場合
+     * @throws ReportCancelledException 取り消された場合、または期限を過ぎた場合
+     */
+    private static SheetFillBuffer prepareReportDataFileDataSection(XSSFSheet sheet, String[] header,
+            List<String> lines, HashMap<String, ReportFormatField> reportFormatFieldMap,
+            ReportCancellationToken cancellationToken) {
+        // CSVヘッダ行の列ごとに、locationに指定された位置を求めておく
+        CellReference[] cellReferences = new CellReference[header.length];
+        for (int i = 0; i < header.length; i++) {
+            ReportFormatField reportFormatField = reportFormatFieldMap.get(header[i]);
+            if (reportFormatField != null) {
+                cellReferences[i] = new CellReference(reportFormatField.getLocation());
             }
+        }
 
+        // 固定位置のデータは、すべての行が同じセルに書き込むため、最後の行の値だけが残る
+        // セルへの書き込みはセルごとに1回とし、行ごとには最後の値を保持するだけとする
+        CSVParser csvParser = new CSVParser();
+        String[] lastValues = new String[header.length];
+        boolean hasData = false;
+        for (String line : lines) {
+            cancellationToken.throwIfCancelled();
             // CSVデータ行をパースする
-            String[] data = csvParser.parseLine(line);
+            String[] data;
+            try {
+                data = csvParser.parseLine(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
             if (data == null) {
                 // CSVデータ行が読み込めない場合はその行を読み飛ばす
                 continue;
             }
 
-            // フィールド名と値をマップに格納する
             for (int i = 0; i < header.length; i++) {
-                String fieldName = header[i];
-                String fieldValue = data[i];
-                ReportFormatField reportFormatField = reportFormatFieldMap.get(fieldName);
-                if (reportFormatField != null) {
-                    // フィールド名がマップに存在する場合、locationに指定された位置に値をセットする
-                    CellReference cellRef = new CellReference(reportFormatField.getLocation());
-                    Row row = sheet.getRow(cellRef.getRow());
-                    if (row == null) {
-                        row = sheet.createRow(cellRef.getRow());
-                    }
-                    Cell cell = row.getCell(cellRef.getCol());
-                    if (cell == null) {
-                        cell = row.createCell(cellRef.getCol());
-                    }
-                    cell.setCellValue(fieldValue);
+                if (cellReferences[i] != null) {
+                    lastValues[i] = data[i];
+                }
+            }
+            hasData = true;
+        }
 
+        // フィールド名がマップに存在する場合、locationに指定された位置に値をセットする
+        SheetFillBuffer buffer = new SheetFillBuffer(sheet);
+        if (hasData) {
+            for (int i = 0; i < header.length; i++) {
+                if (cellReferences[i] != null) {
+                    buffer.setCellValue(cellReferences[i].getRow(), cellReferences[i].getCol(), lastValues[i]);
                 }
             }
         }
+        return buffer;
+    }
+
+    /**
+     * 並べ替え、グループ化、集計、重複の抑制が指定されたデータセクションのCSVデータ行を読み込み、
+     * {@link ReportRecordStore} にためてから、{@link ReportListWriter} で明細行としてシートに出力します。
+     *
+     * <p>
+     * ためたレコードの推定メモリ使用量が {@code report.data.spill-threshold-bytes} を超えた場合は、
+     * {@code report.data.spill-dir} のディレクトリに一時ファイルを書き出して外部マージソートで並べ替えます。
+     * 一時ファイルは、エラーや取り消しの場合もレコードストアのクローズで削除します。
+     * 並べ替えと出力する値の準備は {@link SheetFillQueue} で他のデータセクションと並列に行います。
+     * </p>
+     *
+     * @param processor  {@link ReportDataFileProcessor} のインスタンス
+     * @param csvParser  CSVデータ行のパーサ
+     * @param listWriter 明細行の出力
+     * @param sheet      出力先のシート
+     * @return "<start>" 行が見つかった場合は {@code true}、それ以外の場合は {@code false}。
+     * @throws IOException ファイルの読み込み中、または一時ファイルの読み書き中にI/Oエラーが発生した場合。
+     */
+    private boolean readReportDataFileListSection(ReportDataFileProcessor processor, CSVParser csvParser,
+            ReportListWriter listWriter, XSSFSheet sheet) throws IOException {
+        BufferedReader reader = processor.getReportDataFileReader();
+        ReportShardWriter shardWriter = processor.getReportShardWriter();
+        ReportCancellationToken cancellationToken = processor.getCancellationToken();
+        boolean hasNextSection;
+        // 一時ファイルのディレクトリが指定されていない場合は、システムの一時ディレクトリを使用する
+        ReportRecordStore recordStore = listWriter.createRecordStore(spillThresholdBytes,
+                spillDir.isEmpty() ? null : Paths.get(spillDir));
+        boolean isSubmitted = false;
+        try {
+            // CSVデータ行を読み込み、ファイルが終了するか、<start>行が見つかるまでループする
+            while (true) {
+                cancellationToken.throwIfCancelled();
+                reader.mark(1024); // 1024バイトまでmarkする
+                String line = reader.readLine();
+                if (line == null) {
+                    // ファイルの終端
+                    hasNextSection = false;
+                    break;
+                }
+                // <start>行が見つかった場合は、markした位置に戻す
+                if ("<start>".equals(line)) {
+                    reader.reset();
+                    hasNextSection = true;
+                    break;
+                }
+
+                // CSVデータ行をパースする
+                String[] data = csvParser.parseLine(line);
+                if (data == null) {
+                    // CSVデータ行が読み込めない場合はその行を読み飛ばす
+                    continue;
+                }
+                recordStore.add(listWriter.selectValues(data));
+            }
+
+            // キーの順に並べ替えて、明細行と集計行を出力する
+            if (shardWriter != null) {
+                // シャードモードでは、シャードの確定時にワークブックを複製するため、準備したセルの値を先に適用する
+                processor.getSheetFillQueue().commitAll();
+                listWriter.write(cancellable(recordStore.sortedIterator(), cancellationToken),
+                        shardWriter.createSink(sheet));
+            } else {
+                // 並べ替えと出力する値の準備は、他のデータセクションと並列に行う
+                // レコードストアは、準備の終了時または取り消し時にキューがクローズする
+                isSubmitted = true;
+                processor.getSheetFillQueue().submit(sheet, () -> {
+                    SheetFillBuffer buffer = new SheetFillBuffer(sheet);
+                    listWriter.write(cancellable(recordStore.sortedIterator(), cancellationToken), buffer);
+                    return buffer;
+                }, recordStore);
+            }
+        } catch (UncheckedIOException e) {
+            // 一時ファイルの読み込み中のエラー
+            throw e.getCause();
+        } finally {
+            // キューに渡したレコードストアは、キューがクローズする
+            if (!isSubmitted) {
+                recordStore.close();
+            }
+        }
+        return hasNextSection;
+    }
+
+    /**
+     * レコードを取り出すたびに、期限と取り消しを確認するイテレータを作成します。
+     *
+     * @param records           レコードのイテレータ
+     * @param cancellationToken 期限と取り消しのトークン
+     * @return 取り消しを確認するイテレータ
+     */
+    private static Iterator<String[]> cancellable(Iterator<String[]> records,
+            ReportCancellationToken cancellationToken) {
+        return new Iterator<String[]>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public String[] next() {
+                cancellationToken.throwIfCancelled();
+                return records.next();
+            }
+        };
     }
 
     /**
@@ -407,42 +1054,65 @@ public class ReportUtility {
     private HashMap<String, ReportFormatField> getReportFormatFieldMap(ReportDataFileProcessor processor) {
         HashMap<String, ReportFormatField> reportFormatFieldMap = processor.getReportFormatFieldMap();
         if (reportFormatFieldMap == null) {
-            reportFormatFieldMap = new HashMap<>();
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             // XMLファイルを読み込む
             Path xmlFilePath = Paths.get(reportXmlDir, processor.getXmlFormFileName());
-            if (!Files.exists(xmlFilePath)) {
-                // ファイルが存在しない
-                throw new IllegalArgumentException("ファイルが存在しない");
-            }
-            // XMLファイルをパースして、reportFormatFieldMapに格納する
-            DocumentBuilder builder;
-            try {
-                builder = factory.newDocumentBuilder();
-            } catch (ParserConfigurationException e) {
-                throw new IllegalArgumentException("Error configuring XML parser", e);
-            }
-            Document document;
-            try {
-                document = builder.parse(xmlFilePath.toFile());
-            } catch (SAXException | IOException e) {
-                throw new IllegalArgumentException("Error parsing XML file", e);
-            }
-            Element root = document.getDocumentElement();
-            NodeList fieldList = root.getElementsByTagName("Field");
-            for (int i = 0; i < fieldList.getLength(); i++) {
-                Element fieldElement = (Element) fieldList.item(i);
-                String fieldName = fieldElement.getAttribute("name");
-                String fieldLocation = fieldElement.getAttribute("strComment");
-                String fieldEditFormula = fieldElement.getAttribute("strEditFormula");
-                ReportFormatField reportFormatField = new ReportFormatField();
-                reportFormatField.setFieldName(fieldName);
-                reportFormatField.setLocation(fieldLocation);
-                reportFormatField.setFormulaString(fieldEditFormula);
-                reportFormatFieldMap.put(fieldName, reportFormatField);
-            }
+            reportFormatFieldMap = parseReportFormatXml(xmlFilePath);
             processor.setReportFormatFieldMap(reportFormatFieldMap);
         }
         return reportFormatFieldMap;
     }
+
+    /**
+     * 様式定義XMLファイルを解析し、様式定義フィールドのマップを作成します。
+     *
+     * @param xmlFilePath 様式定義XMLファイルのパス
+     * @return フィールド名をキーとし、{@link ReportFormatField} オブジェクトを値とする
+     *         {@link HashMap} を返します。
+     * @throws IllegalArgumentException XMLファイルが存在しない場合、またはXMLの解析や
+     *                                  設定中にエラーが発生した場合にスローされます。
+     */
+    static HashMap<String, ReportFormatField> parseReportFormatXml(Path xmlFilePath) {
+        HashMap<String, ReportFormatField> reportFormatFieldMap = new HashMap<>();
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        if (!Files.exists(xmlFilePath)) {
+            // ファイルが存在しない
+            throw new IllegalArgumentException("ファイルが存在しない");
+        }
+        // XMLファイルをパースして、reportFormatFieldMapに格納する
+        DocumentBuilder builder;
+        try {
+            builder = factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalArgumentException("Error configuring XML parser", e);
+        }
+        Document document;
+        try {
+            document = builder.parse(xmlFilePath.toFile());
+        } catch (SAXException | IOException e) {
+            throw new IllegalArgumentException("Error parsing XML file", e);
+        }
+        Element root = document.getDocumentElement();
+        NodeList fieldList = root.getElementsByTagName("Field");
+        for (int i = 0; i < fieldList.getLength(); i++) {
+            Element fieldElement = (Element) fieldList.item(i);
+            String fieldName = fieldElement.getAttribute("name");
+            String fieldLocation = fieldElement.getAttribute("strComment");
+            String fieldEditFormula = fieldElement.getAttribute("strEditFormula");
+            ReportFormatField reportFormatField = new ReportFormatField();
+            reportFormatField.setFieldName(fieldName);
+            reportFormatField.setLocation(fieldLocation);
+            reportFormatField.setFormulaString(fieldEditFormula);
+            String keyNum = fieldElement.getAttribute("keyNum");
+            reportFormatField.setKeyNum(keyNum.isEmpty() ? 0 : Integer.parseInt(keyNum));
+            reportFormatField.setDescending(Boolean.parseBoolean(fieldElement.getAttribute("isDescending")));
+            reportFormatField.setTotalRecName(fieldElement.getAttribute("strTotalRecName"));
+            reportFormatField.setGroupSuppress(Boolean.parseBoolean(fieldElement.getAttribute("groupSuppress")));
+            reportFormatField.setSuppressLineOnDuplicated(
+                    Boolean.parseBoolean(fieldElement.getAttribute("suppressLineOnDuplicated")));
+            reportFormatField.setClearAccumulateCount(
+                    Boolean.parseBoolean(fieldElement.getAttribute("clearAccumulateCount")));
+            reportFormatFieldMap.put(fieldName, reportFormatField);
+        }
+        return reportFormatFieldMap;
+    }
 }
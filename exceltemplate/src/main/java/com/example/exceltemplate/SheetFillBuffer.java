@@ -0,0 +1,101 @@
+package com.example.exceltemplate;
+
+import java.util.Arrays;
+
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+
+/**
+ * 1つのデータセクションでシートに書き込むセルの値を、ワークブックに適用するまでためておくバッファです。
+ *
+ * <p>
+ * 値の追加ではワークブックを操作しないため、別スレッドで行えます。
+ * {@link #commit()} はワークブックを操作するスレッドで呼び出し、追加した順にセルへ書き込みます。
+ * </p>
+ */
+public class SheetFillBuffer implements ReportLineSink {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final XSSFSheet sheet;
+    private int[] rowIndexes = new int[INITIAL_CAPACITY];
+    private int[] columnIndexes = new int[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @param sheet 値を書き込むシート
+     */
+    public SheetFillBuffer(XSSFSheet sheet) {
+        this.sheet = sheet;
+    }
+
+    /**
+     * 値を書き込むシートを取得します。
+     *
+     * @return シート
+     */
+    public XSSFSheet getSheet() {
+        return sheet;
+    }
+
+    /**
+     * セルに書き込む値を追加します。
+     *
+     * @param rowIndex    行番号
+     * @param columnIndex 列番号
+     * @param value       {@link String} または {@link Double} の値
+     */
+    public void setCellValue(int rowIndex, int columnIndex, Object value) {
+        if (size == values.length) {
+            int capacity = size * 2;
+            rowIndexes = Arrays.copyOf(rowIndexes, capacity);
+            columnIndexes = Arrays.copyOf(columnIndexes, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        rowIndexes[size] = rowIndex;
+        columnIndexes[size] = columnIndex;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException 出力位置がExcelの最大行数を超える場合
+     */
+    @Override
+    public void writeLine(int lineNo, CellReference[] cellReferences, Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                continue;
+            }
+            int rowIndex = cellReferences[i].getRow() + lineNo;
+            if (rowIndex > SheetLineSink.LAST_ROW_INDEX) {
+                // 最大行数を超える帳票は、ReportUtility#outputReportShardsで分割して出力する
+                throw new IllegalArgumentException("Excelの最大行数を超えています");
+            }
+            setCellValue(rowIndex, cellReferences[i].getCol(), values[i]);
+        }
+    }
+
+    /**
+     * ためた値を追加した順にシートへ書き込みます。
+     */
+    public void commit() {
+        commit(null);
+    }
+
+    /**
+     * ためた値を追加した順にシートへ書き込み、書き込んだセルを記録します。
+     *
+     * @param writtenCells 書き込んだセルを記録するセット。記録しない場合はnull
+     */
+    public void commit(WrittenCellSet writtenCells) {
+        for (int i = 0; i < size; i++) {
+            SheetLineSink.setCellValue(sheet, rowIndexes[i], columnIndexes[i], values[i]);
+            if (writtenCells != null) {
+                writtenCells.add(sheet, rowIndexes[i], columnIndexes[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.exceltemplate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+
+/**
+ * データセクションごとのセルの値の準備を並列に実行し、準備した {@link SheetFillBuffer} を
+ * データセクションの順にワークブックへ適用します。
+ *
+ * <p>
+ * {@code XSSFWorkbook} はスレッドセーフではないため、準備はワークブックを操作せずにバッファへ値をためるだけとし、
+ * ワークブックへの適用（コミット）はすべて呼び出し元のスレッドで行います。
+ * 準備中のデータセクションが上限に達した場合は、最も古いものから適用して空きを作ります。
+ * </p>
+ *
+ * <p>
+ * エラーや取り消しで帳票の作成を中断する場合は {@link #cancelAll()} を呼び出し、開始前の準備を取り消します。
+ * 準備で使用するリソースは、準備を開始した場合は準備の終了時に、開始前に取り消した場合は取り消し時にクローズします。
+ * </p>
+ */
+public class SheetFillQueue {
+
+    /**
+     * 準備中、または適用待ちのデータセクションです。
+     */
+    private static class PendingFill {
+        private XSSFSheet sheet;
+        private CompletableFuture<SheetFillBuffer> future;
+        private Closeable resource;
+        private boolean started;
+        private boolean cancelled;
+
+        /**
+         * 準備を開始します。取り消し済みの場合はfalseを返します。
+         */
+        private synchronized boolean start() {
+            if (cancelled) {
+                return false;
+            }
+            started = true;
+            return true;
+        }
+
+        /**
+         * 準備を取り消し、開始前の場合はクローズするリソースを返します。
+         */
+        private synchronized Closeable cancel() {
+            cancelled = true;
+            return started ? null : resource;
+        }
+    }
+
+    private final Executor executor;
+    private final int maxPendingFills;
+    private final WrittenCellSet writtenCells;
+    private final ArrayDeque<PendingFill> pendingFills = new ArrayDeque<>();
+
+    /**
+     * @param executor        セルの値を準備するExecutor
+     * @param maxPendingFills 同時に準備するデータセクションの数の上限
+     */
+    public SheetFillQueue(Executor executor, int maxPendingFills) {
+        this(executor, maxPendingFills, null);
+    }
+
+    /**
+     * @param executor        セルの値を準備するExecutor
+     * @param maxPendingFills 同時に準備するデータセクションの数の上限
+     * @param writtenCells    適用時に書き込んだセルを記録するセット。記録しない場合はnull
+     */
+    public SheetFillQueue(Executor executor, int maxPendingFills, WrittenCellSet writtenCells) {
+        this.executor = executor;
+        this.maxPendingFills = Math.max(1, maxPendingFills);
+        this.writtenCells = writtenCells;
+    }
+
+    /**
+     * データセクションのセルの値の準備を開始します。
+     *
+     * @param sheet 値を書き込むシート
+     * @param task  ワークブックを操作せずに {@link SheetFillBuffer} を作成する処理。
+     *              入出力エラーは {@link UncheckedIOException} でスローすること
+     * @throws IOException 空きを作るために適用したデータセクションの準備中にエラーが発生した場合
+     */
+    public void submit(XSSFSheet sheet, Supplier<SheetFillBuffer> task) throws IOException {
+        submit(sheet, task, null);
+    }
+
+    /**
+     * 準備で使用するリソースを指定して、データセクションのセルの値の準備を開始します。
+     * リソースは準備の終了時、または準備を開始する前に取り消した場合に、このキューがクローズします。
+     *
+     * @param sheet    値を書き込むシート
+     * @param task     ワークブックを操作せずに {@link SheetFillBuffer} を作成する処理。
+     *                 入出力エラーは {@link UncheckedIOException} でスローすること
+     * @param resource 準備で使用するリソース。無い場合はnull
+     * @throws IOException 空きを作るために適用したデータセクションの準備中にエラーが発生した場合
+     */
+    public void submit(XSSFSheet sheet, Supplier<SheetFillBuffer> task, Closeable resource) throws IOException {
+        try {
+            while (pendingFills.size() >= maxPendingFills) {
+                commitOldest();
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            closeQuietly(resource);
+            throw e;
+        }
+        PendingFill pendingFill = new PendingFill();
+        pendingFill.sheet = sheet;
+        pendingFill.resource = resource;
+        pendingFill.future = CompletableFuture.supplyAsync(() -> {
+            if (!pendingFill.start()) {
+                throw new CancellationException();
+            }
+            try (Closeable closeable = resource) {
+                return task.get();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+        pendingFills.add(pendingFill);
+    }
+
+    /**
+     * 指定されたシートに書き込むデータセクションが、まだ適用されていないかを判定します。
+     *
+     * @param sheet シート
+     * @return 適用されていないデータセクションがある場合はtrue
+     */
+    public boolean hasPendingFills(XSSFSheet sheet) {
+        for (PendingFill pendingFill : pendingFills) {
+            if (pendingFill.sheet == sheet) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * すべてのデータセクションの準備が終わるのを待ち、データセクションの順にワークブックへ適用します。
+     *
+     * @throws IOException データセクションの準備中に入出力エラーが発生した場合
+     */
+    public void commitAll() throws IOException {
+        while (!pendingFills.isEmpty()) {
+            commitOldest();
+        }
+    }
+
+    /**
+     * 適用していないデータセクションの準備をすべて取り消します。
+     * 開始前の準備は実行せずにリソースをクローズし、実行中の準備は終了を待たずに結果を破棄します。
+     */
+    public void cancelAll() {
+        while (!pendingFills.isEmpty()) {
+            PendingFill pendingFill = pendingFills.poll();
+            Closeable resource = pendingFill.cancel();
+            pendingFill.future.cancel(false);
+            closeQuietly(resource);
+        }
+    }
+
+    private static void closeQuietly(Closeable resource) {
+        if (resource == null) {
+            return;
+        }
+        try {
+            resource.close();
+        } catch (IOException e) {
+            // リソースのクローズ時の例外は無視する
+        }
+    }
+
+    private void commitOldest() throws IOException {
+        PendingFill pendingFill = pendingFills.poll();
+        SheetFillBuffer buffer;
+        try {
+            buffer = pendingFill.future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+        buffer.commit(writtenCells);
+    }
+}
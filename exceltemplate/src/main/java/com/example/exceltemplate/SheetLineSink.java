@@ -0,0 +1,68 @@
+package com.example.exceltemplate;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+
+/**
+ * 明細行と集計行を、1行目の出力位置から1行ずつ下の行としてシートに直接書き込みます。
+ */
+public class SheetLineSink implements ReportLineSink {
+    /** Excel（xlsx）の最終行の行番号 */
+    static final int LAST_ROW_INDEX = SpreadsheetVersion.EXCEL2007.getLastRowIndex();
+
+    private final XSSFSheet sheet;
+
+    /**
+     * @param sheet 出力先のシート
+     */
+    public SheetLineSink(XSSFSheet sheet) {
+        this.sheet = sheet;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException 出力位置がExcelの最大行数を超える場合
+     */
+    @Override
+    public void writeLine(int lineNo, CellReference[] cellReferences, Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                continue;
+            }
+            int rowIndex = cellReferences[i].getRow() + lineNo;
+            if (rowIndex > LAST_ROW_INDEX) {
+                // 最大行数を超える帳票は、ReportUtility#outputReportShardsで分割して出力する
+                throw new IllegalArgumentException("Excelの最大行数を超えています");
+            }
+            setCellValue(sheet, rowIndex, cellReferences[i].getCol(), values[i]);
+        }
+    }
+
+    /**
+     * シートのセルに値を設定します。行やセルが存在しない場合は作成します。
+     *
+     * @param sheet       出力先のシート
+     * @param rowIndex    行番号
+     * @param columnIndex 列番号
+     * @param value       {@link String} または {@link Double} の値
+     */
+    static void setCellValue(XSSFSheet sheet, int rowIndex, int columnIndex, Object value) {
+        Row row = sheet.getRow(rowIndex);
+        if (row == null) {
+            row = sheet.createRow(rowIndex);
+        }
+        Cell cell = row.getCell(columnIndex);
+        if (cell == null) {
+            cell = row.createCell(columnIndex);
+        }
+        if (value instanceof Double) {
+            cell.setCellValue((Double) value);
+        } else {
+            cell.setCellValue((String) value);
+        }
+    }
+}
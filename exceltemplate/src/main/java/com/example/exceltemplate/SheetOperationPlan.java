@@ -0,0 +1,397 @@
+package com.example.exceltemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorksheet;
+
+/**
+ * 関数セクション内のシート操作コマンド（XSSA、XSSC、XSSD）を記録し、最適化してから
+ * まとめてワークブックに適用する実行計画です。
+ *
+ * <p>
+ * コマンドは読み込み時にはワークブックへ適用せず、シート構成の仮想モデルに対して記録します。
+ * シート番号（NO=）は記録時点の仮想モデルでシート名に解決され、シートが存在しない場合などの
+ * エラーは従来どおりコマンドの読み込み時に検出されます。
+ * {@link #apply()} では最終的なシート構成だけを求め、以下の最適化を行ってからワークブックへ適用します。
+ * </p>
+ * <ul>
+ * <li>複製した後に削除されたシートは、複製自体を行いません。</li>
+ * <li>削除されたシートの複製が残る場合、最初の複製は元シートの名前変更で作成し、複製を1回減らします。
+ * ただし、名前変更と複製・削除で結果が異なるシートは、この最適化を行いません（{@link #isRenamable(String)}）。</li>
+ * <li>シートのアクティブ化は、最終的なアクティブシートの設定1回にまとめます。</li>
+ * </ul>
+ *
+ * <p>
+ * 適用後のワークブックは、記録したコマンドを記録順に適用した場合と同じになります。
+ * 最適化後の操作でシート名が衝突する場合は、記録したコマンドを記録順にそのまま適用します。
+ * </p>
+ */
+public class SheetOperationPlan {
+    private static final String PREFIX_NAME = "NAME=";
+    private static final String PREFIX_NO = "NO=";
+    private static final String PREFIX_CHANGE = "CHANGE=";
+
+    /**
+     * 仮想モデル上のシートです。
+     * 既存シートは {@code originalName} を、複製されたシートは複製元の既存シート名 {@code sourceName} を持ちます。
+     */
+    private static class PlannedSheet {
+        private String name;
+        private String originalName;
+        private String sourceName;
+    }
+
+    /**
+     * 記録したコマンドです。最適化できない場合に記録順に適用するため、シート番号を記録時点で解決して保持します。
+     */
+    private static class RecordedCommand {
+        private String command;
+        private int sheetNo;
+        private String newSheetName;
+    }
+
+    private final XSSFWorkbook workbook;
+    private final ArrayList<String> originalSheetNames = new ArrayList<>();
+    private final ArrayList<PlannedSheet> sheets = new ArrayList<>();
+    private final ArrayList<RecordedCommand> recordedCommands = new ArrayList<>();
+    private final LinkedHashSet<String> cloneSourceSheetNames = new LinkedHashSet<>();
+    private final LinkedHashMap<XSSFSheet, XSSFSheet> clonedSheets = new LinkedHashMap<>();
+    private PlannedSheet activeSheet;
+
+    /**
+     * 指定されたワークブックの現在のシート構成から、実行計画を作成します。
+     *
+     * @param workbook シート操作の対象となるワークブック
+     */
+    public SheetOperationPlan(XSSFWorkbook workbook) {
+        this.workbook = workbook;
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            PlannedSheet sheet = new PlannedSheet();
+            sheet.name = workbook.getSheetName(i);
+            sheet.originalName = sheet.name;
+            originalSheetNames.add(sheet.name);
+            sheets.add(sheet);
+        }
+        if (!sheets.isEmpty()) {
+            activeSheet = sheets.get(workbook.getActiveSheetIndex());
+        }
+    }
+
+    /**
+     * XSSAコマンドを記録します。
+     *
+     * @param sheetParam "NAME=シート名"または"NO=シート番号"形式のパラメータ
+     * @throws IllegalArgumentException シートが存在しない場合、またはフォーマットが不正な場合
+     */
+    public void activate(String sheetParam) {
+        int sheetNo = resolveSheetNo(sheetParam);
+        activeSheet = sheets.get(sheetNo);
+        record("XSSA", sheetNo, null);
+    }
+
+    /**
+     * XSSCコマンドを記録します。複製したシートは末尾に追加され、アクティブシートになります。
+     *
+     * @param fromSheetParam "NAME=シート名"または"NO=シート番号"形式の複製元パラメータ
+     * @param toSheetParam   "CHANGE=シート名"形式の複製先パラメータ
+     * @throws IllegalArgumentException シートが存在しない場合、フォーマットが不正な場合、
+     *                                  または複製先のシート名が不正か既に存在する場合
+     */
+    public void clone(String fromSheetParam, String toSheetParam) {
+        int fromSheetNo = resolveSheetNo(fromSheetParam);
+        if (!toSheetParam.startsWith(PREFIX_CHANGE)) {
+            // フォーマットエラー
+            throw new IllegalArgumentException("フォーマットエラー");
+        }
+        // toSheetParamを"CHANGE=シート名"形式のため、分割してシート名を取得する
+        String toSheetName = toSheetParam.substring(PREFIX_CHANGE.length());
+        WorkbookUtil.validateSheetName(toSheetName);
+        if (findSheetNo(toSheetName) != -1) {
+            throw new IllegalArgumentException("The workbook already contains a sheet named '" + toSheetName + "'");
+        }
+
+        PlannedSheet fromSheet = sheets.get(fromSheetNo);
+        PlannedSheet sheet = new PlannedSheet();
+        sheet.name = toSheetName;
+        // 関数セクション内ではセルへの書き込みが無いため、複製の複製は既存シートの複製と同じ内容になる
+        sheet.sourceName = fromSheet.originalName != null ? fromSheet.originalName : fromSheet.sourceName;
+        sheets.add(sheet);
+        activeSheet = sheet;
+        cloneSourceSheetNames.add(sheet.sourceName);
+        record("XSSC", fromSheetNo, toSheetName);
+    }
+
+    /**
+     * XSSDコマンドを記録します。
+     *
+     * @param sheetParam "NAME=シート名"または"NO=シート番号"形式のパラメータ
+     * @throws IllegalArgumentException シートが存在しない場合、またはフォーマットが不正な場合
+     */
+    public void delete(String sheetParam) {
+        int deleteSheetNo = resolveSheetNo(sheetParam);
+        PlannedSheet deleteSheet = sheets.remove(deleteSheetNo);
+        // アクティブシートの調整はXSSFWorkbook#removeSheetAtと同じ規則で行う
+        if (deleteSheet == activeSheet) {
+            activeSheet = sheets.isEmpty() ? null : sheets.get(Math.min(deleteSheetNo, sheets.size() - 1));
+        }
+        record("XSSD", deleteSheetNo, null);
+    }
+
+    private void record(String command, int sheetNo, String newSheetName) {
+        RecordedCommand recordedCommand = new RecordedCommand();
+        recordedCommand.command = command;
+        recordedCommand.sheetNo = sheetNo;
+        recordedCommand.newSheetName = newSheetName;
+        recordedCommands.add(recordedCommand);
+    }
+
+    /**
+     * "NAME=シート名"または"NO=シート番号"形式のパラメータを、仮想モデル上のシート番号に解決します。
+     */
+    private int resolveSheetNo(String sheetParam) {
+        int sheetNo;
+        if (sheetParam.startsWith(PREFIX_NAME)) {
+            // sheetParamを"NAME=シート名"形式のため、分割してシート名を取得する
+            sheetNo = findSheetNo(sheetParam.substring(PREFIX_NAME.length()));
+        } else if (sheetParam.startsWith(PREFIX_NO)) {
+            // sheetParamを"NO=シート番号"形式のため、分割してシート番号を取得する
+            sheetNo = Integer.parseInt(sheetParam.substring(PREFIX_NO.length()));
+        } else {
+            // フォーマットエラー
+            throw new IllegalArgumentException("フォーマットエラー");
+        }
+        if (sheetNo < 0 || sheetNo >= sheets.size()) {
+            // シートが存在しない
+            throw new IllegalArgumentException("シートが存在しない");
+        }
+        return sheetNo;
+    }
+
+    /**
+     * XSSFWorkbook#getSheetIndex(String)と同様に、大文字小文字を区別せずにシートを検索します。
+     */
+    private int findSheetNo(String sheetName) {
+        for (int i = 0; i < sheets.size(); i++) {
+            if (sheets.get(i).name.equalsIgnoreCase(sheetName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 記録したXSSCコマンドで複製元となった既存シートの名前を取得します。
+     * 複製の複製は、最初の複製元の既存シートを返します。
+     *
+     * @return 複製元の既存シートの名前（適用前のワークブックのシート名）
+     */
+    public Set<String> getCloneSourceSheetNames() {
+        return cloneSourceSheetNames;
+    }
+
+    /**
+     * {@link #apply()} で複製したシートと、その複製元のシートを取得します。
+     * 名前変更で代用した複製は、既存シートそのものであるため含みません。
+     *
+     * @return 複製したシート → 複製元のシート（複製した順）
+     */
+    public Map<XSSFSheet, XSSFSheet> getClonedSheets() {
+        return clonedSheets;
+    }
+
+    /**
+     * 記録したコマンドを最適化してワークブックに適用します。
+     *
+     * <p>
+     * 適用後のシートの並び順とアクティブシートは、記録したコマンドを順に適用した場合と同じになります。
+     * </p>
+     */
+    public void apply() {
+        if (recordedCommands.isEmpty()) {
+            return;
+        }
+
+        // 削除された既存シートごとに、名前変更で代用する最初の複製を決める
+        HashMap<String, PlannedSheet> renamedSheets = new HashMap<>();
+        ArrayList<String> deletedSheetNames = new ArrayList<>();
+        ArrayList<String> renamableSheetNames = new ArrayList<>();
+        for (String originalSheetName : originalSheetNames) {
+            if (!containsOriginal(originalSheetName)) {
+                deletedSheetNames.add(originalSheetName);
+                if (isRenamable(originalSheetName)) {
+                    renamableSheetNames.add(originalSheetName);
+                }
+            }
+        }
+        for (PlannedSheet sheet : sheets) {
+            if (sheet.sourceName != null && renamableSheetNames.contains(sheet.sourceName)
+                    && !renamedSheets.containsKey(sheet.sourceName)) {
+                renamedSheets.put(sheet.sourceName, sheet);
+            }
+        }
+
+        if (hasNameConflict(renamedSheets)) {
+            applyRecordedCommands();
+            return;
+        }
+
+        // 1. 名前変更で代用しない複製を作成する（この時点では既存シートはすべて元の名前で存在する）
+        for (PlannedSheet sheet : sheets) {
+            if (sheet.sourceName != null && renamedSheets.get(sheet.sourceName) != sheet) {
+                XSSFSheet sourceSheet = workbook.getSheet(sheet.sourceName);
+                XSSFSheet clonedSheet = workbook.cloneSheet(workbook.getSheetIndex(sourceSheet), sheet.name);
+                clonedSheets.put(clonedSheet, sourceSheet);
+            }
+        }
+        // 2. 複製が残らない削除シートを削除する
+        for (String deletedSheetName : deletedSheetNames) {
+            if (!renamedSheets.containsKey(deletedSheetName)) {
+                workbook.removeSheetAt(workbook.getSheetIndex(deletedSheetName));
+            }
+        }
+        // 3. 複製が残る削除シートは、最初の複製の名前に変更する
+        for (String deletedSheetName : deletedSheetNames) {
+            PlannedSheet renamedSheet = renamedSheets.get(deletedSheetName);
+            if (renamedSheet != null) {
+                int sheetNo = workbook.getSheetIndex(deletedSheetName);
+                workbook.setSheetName(sheetNo, renamedSheet.name);
+                // 複製したシートと同様に、選択状態を解除する
+                workbook.getSheetAt(sheetNo).setSelected(false);
+            }
+        }
+        // 4. シートを最終的な並び順に並べ替え、アクティブシートを設定する
+        for (int i = 0; i < sheets.size(); i++) {
+            String sheetName = sheets.get(i).name;
+            if (workbook.getSheetIndex(sheetName) != i) {
+                workbook.setSheetOrder(sheetName, i);
+            }
+        }
+        if (activeSheet != null) {
+            workbook.setActiveSheet(sheets.indexOf(activeSheet));
+        }
+        recordedCommands.clear();
+    }
+
+    /**
+     * 削除される既存シートを、複製の代わりに名前変更してよいかを判定します。
+     *
+     * <p>
+     * POIの複製はページ設定とコメントを含まず、シートを削除するとそのシートを参照する数式や名前は
+     * 参照先を失います。一方、名前変更ではそれらが維持され、参照も新しい名前に書き換えられます。
+     * そのため、以下のいずれかに該当するシートは名前変更せず、複製してから削除します。
+     * </p>
+     * <ul>
+     * <li>非表示のシートである（複製は表示されたシートになる）</li>
+     * <li>ページ設定、コメント（VML図形）、図形のいずれかがある</li>
+     * <li>シートをスコープとする名前（印刷範囲など）がある</li>
+     * <li>シート名を含む数式、または名前がある（大文字小文字を区別しない文字列の比較で、安全側に判定する）</li>
+     * </ul>
+     */
+    private boolean isRenamable(String sheetName) {
+        XSSFSheet sheet = workbook.getSheet(sheetName);
+        int sheetIndex = workbook.getSheetIndex(sheet);
+        if (workbook.isSheetHidden(sheetIndex) || workbook.isSheetVeryHidden(sheetIndex)) {
+            return false;
+        }
+        CTWorksheet ctWorksheet = sheet.getCTWorksheet();
+        if (ctWorksheet.isSetPageSetup() || ctWorksheet.isSetLegacyDrawing() || ctWorksheet.isSetDrawing()) {
+            return false;
+        }
+        // 数式中のシート名は、'で囲む場合に名前の中の'を重ねて記述する
+        String upperSheetName = sheetName.toUpperCase(Locale.ROOT);
+        String quotedSheetName = upperSheetName.replace("'", "''");
+        for (XSSFName name : workbook.getAllNames()) {
+            if (name.getSheetIndex() == sheetIndex
+                    || containsSheetName(name.getRefersToFormula(), upperSheetName, quotedSheetName)) {
+                return false;
+            }
+        }
+        for (Sheet otherSheet : workbook) {
+            for (Row row : otherSheet) {
+                for (Cell cell : row) {
+                    if (cell.getCellType() == CellType.FORMULA
+                            && containsSheetName(cell.getCellFormula(), upperSheetName, quotedSheetName)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsSheetName(String formula, String upperSheetName, String quotedSheetName) {
+        if (formula == null) {
+            return false;
+        }
+        String upperFormula = formula.toUpperCase(Locale.ROOT);
+        return upperFormula.contains(upperSheetName) || upperFormula.contains(quotedSheetName);
+    }
+
+    private boolean containsOriginal(String originalSheetName) {
+        for (PlannedSheet sheet : sheets) {
+            if (originalSheetName.equals(sheet.originalName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 最適化後の複製・名前変更で、作成するシート名が既存シートの名前と衝突するかを判定します。
+     * 例えば、既存シートを削除した後に同じ名前で複製を作成した場合に衝突します。
+     */
+    private boolean hasNameConflict(HashMap<String, PlannedSheet> renamedSheets) {
+        for (PlannedSheet sheet : sheets) {
+            if (sheet.sourceName == null) {
+                continue;
+            }
+            for (String originalSheetName : originalSheetNames) {
+                boolean isRenameOfSelf = renamedSheets.get(originalSheetName) == sheet;
+                if (!isRenameOfSelf && originalSheetName.equalsIgnoreCase(sheet.name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 記録したコマンドを記録順にそのまま適用します。
+     */
+    private void applyRecordedCommands() {
+        for (RecordedCommand recordedCommand : recordedCommands) {
+            switch (recordedCommand.command) {
+                case "XSSA":
+                    workbook.setActiveSheet(recordedCommand.sheetNo);
+                    break;
+                case "XSSC":
+                    XSSFSheet sourceSheet = workbook.getSheetAt(recordedCommand.sheetNo);
+                    XSSFSheet sheet = workbook.cloneSheet(recordedCommand.sheetNo, recordedCommand.newSheetName);
+                    clonedSheets.put(sheet, sourceSheet);
+                    workbook.setActiveSheet(workbook.getSheetIndex(sheet));
+                    break;
+                case "XSSD":
+                    workbook.removeSheetAt(recordedCommand.sheetNo);
+                    break;
+                default:
+                    // 未対応のコマンド
+                    throw new IllegalArgumentException("未対応のコマンド");
+            }
+        }
+        recordedCommands.clear();
+    }
+}
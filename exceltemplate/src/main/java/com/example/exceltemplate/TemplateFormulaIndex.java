@@ -0,0 +1,353 @@
+package com.example.exceltemplate;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.AbstractFunctionPtg;
+import org.apache.poi.ss.formula.ptg.Area3DPxg;
+import org.apache.poi.ss.formula.ptg.AreaPtgBase;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPxg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.Ref3DPxg;
+import org.apache.poi.ss.formula.ptg.RefPtgBase;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * テンプレートExcelファイルの数式と、数式が参照するセル範囲の依存関係の索引です。
+ *
+ * <p>
+ * 索引はテンプレートを読み込んだ直後のワークブックから作成し、テンプレートごとにキャッシュします。
+ * 数式の位置はシート名と行・列番号で保持するため、同じテンプレートから作成したワークブックや、
+ * 複製したシートにもそのまま使用できます。{@link ReportTemplateBundle} には作成済みの索引を保存し、
+ * バンドルを使用する帳票では索引を作成しません。以下の数式は、参照先を特定できないため常に再計算の対象とします。
+ * </p>
+ * <ul>
+ * <li>名前（名前付き範囲）を参照する数式</li>
+ * <li>複数シートにまたがる参照（Sheet1:Sheet3!A1など）を含む数式</li>
+ * <li>INDIRECT、OFFSETなど、参照先や結果が計算のたびに変わる関数を含む数式</li>
+ * <li>解析できない数式</li>
+ * </ul>
+ */
+public class TemplateFormulaIndex {
+    /** キャッシュするテンプレートの数の上限 */
+    private static final int CACHE_SIZE = 64;
+
+    /** 参照先や結果が計算のたびに変わる関数 */
+    private static final Set<String> VOLATILE_FUNCTIONS = Set.of(
+            "INDIRECT", "OFFSET", "NOW", "TODAY", "RAND", "RANDBETWEEN", "CELL", "INFO");
+
+    private static final Map<String, TemplateFormulaIndex> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, TemplateFormulaIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TemplateFormulaIndex> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    /**
+     * 数式が参照するセル範囲です。
+     */
+    static class Precedent {
+        /** 参照先のシート名。シート名を指定しない参照（数式と同じシート）の場合はnull */
+        final String sheetName;
+        final int firstRow;
+        final int lastRow;
+        final int firstColumn;
+        final int lastColumn;
+
+        private Precedent(String sheetName, int firstRow, int lastRow, int firstColumn, int lastColumn) {
+            this.sheetName = sheetName;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.firstColumn = firstColumn;
+            this.lastColumn = lastColumn;
+        }
+    }
+
+    /**
+     * テンプレートの数式です。
+     */
+    static class Formula {
+        final String sheetName;
+        final int rowIndex;
+        final int columnIndex;
+        /** 参照先を特定できないため、常に再計算する場合はtrue */
+        final boolean alwaysAffected;
+        final Precedent[] precedents;
+        /** この数式をシート名を指定せずに参照する、同じシートの数式の番号 */
+        int[] sameSheetDependents = new int[0];
+        /** この数式をシート名を指定して参照する数式の番号 */
+        int[] otherSheetDependents = new int[0];
+
+        private Formula(String sheetName, int rowIndex, int columnIndex, boolean alwaysAffected,
+                Precedent[] precedents) {
+            this.sheetName = sheetName;
+            this.rowIndex = rowIndex;
+            this.columnIndex = columnIndex;
+            this.alwaysAffected = alwaysAffected;
+            this.precedents = precedents;
+        }
+    }
+
+    private final ArrayList<Formula> formulas = new ArrayList<>();
+
+    private TemplateFormulaIndex() {
+    }
+
+    /**
+     * キャッシュからテンプレートの索引を取得します。キャッシュに無い場合は作成してキャッシュします。
+     *
+     * @param cacheKey テンプレートを識別するキー。テンプレートが更新された場合に変わること
+     * @param workbook テンプレートを読み込んだ直後のワークブック
+     * @return 数式の依存関係の索引
+     */
+    public static TemplateFormulaIndex get(String cacheKey, XSSFWorkbook workbook) {
+        TemplateFormulaIndex formulaIndex = CACHE.get(cacheKey);
+        if (formulaIndex == null) {
+            // 作成中はロックしない。同時に作成された場合も内容は同じため、後から登録した索引を使う
+            formulaIndex = build(workbook);
+            CACHE.put(cacheKey, formulaIndex);
+        }
+        return formulaIndex;
+    }
+
+    /**
+     * ワークブックの数式から索引を作成します。
+     *
+     * @param workbook テンプレートを読み込んだ直後のワークブック
+     * @return 数式の依存関係の索引
+     */
+    public static TemplateFormulaIndex build(XSSFWorkbook workbook) {
+        TemplateFormulaIndex formulaIndex = new TemplateFormulaIndex();
+        XSSFEvaluationWorkbook evaluationWorkbook = XSSFEvaluationWorkbook.create(workbook);
+        // シート名 → 列番号 → 行番号 → 数式の番号
+        HashMap<String, TreeMap<Integer, TreeMap<Integer, Integer>>> positions = new HashMap<>();
+        for (int sheetIndex = 0; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) {
+            XSSFSheet sheet = workbook.getSheetAt(sheetIndex);
+            String sheetName = sheet.getSheetName();
+            TreeMap<Integer, TreeMap<Integer, Integer>> columns = new TreeMap<>();
+            positions.put(sheetName, columns);
+            for (Row row : sheet) {
+                for (Cell cell : row) {
+                    if (cell.getCellType() != CellType.FORMULA) {
+                        continue;
+                    }
+                    Formula formula = parseFormula(workbook, evaluationWorkbook, sheetIndex, cell);
+                    columns.computeIfAbsent(formula.columnIndex, key -> new TreeMap<>())
+                            .put(formula.rowIndex, formulaIndex.formulas.size());
+                    formulaIndex.formulas.add(formula);
+                }
+            }
+        }
+        formulaIndex.linkDependents(positions);
+        return formulaIndex;
+    }
+
+    private static Formula parseFormula(XSSFWorkbook workbook, XSSFEvaluationWorkbook evaluationWorkbook,
+            int sheetIndex, Cell cell) {
+        String sheetName = workbook.getSheetName(sheetIndex);
+        ArrayList<Precedent> precedents = new ArrayList<>();
+        boolean alwaysAffected = false;
+        Ptg[] ptgs;
+        try {
+            ptgs = FormulaParser.parse(cell.getCellFormula(), evaluationWorkbook, FormulaType.CELL, sheetIndex);
+        } catch (RuntimeException e) {
+            // 解析できない数式は、常に再計算する
+            ptgs = new Ptg[0];
+            alwaysAffected = true;
+        }
+        for (Ptg ptg : ptgs) {
+            // 3D参照はRefPtgBase、AreaPtgBaseのサブクラスのため、先に判定する
+            if (ptg instanceof Ref3DPxg) {
+                Ref3DPxg ref = (Ref3DPxg) ptg;
+                if (ref.getLastSheetName() != null) {
+                    alwaysAffected = true;
+                } else if (ref.getExternalWorkbookNumber() <= 0) {
+                    addPrecedent(workbook, precedents, ref.getSheetName(), ref.getRow(), ref.getRow(),
+                            ref.getColumn(), ref.getColumn());
+                }
+            } else if (ptg instanceof Area3DPxg) {
+                Area3DPxg area = (Area3DPxg) ptg;
+                if (area.getLastSheetName() != null) {
+                    alwaysAffected = true;
+                } else if (area.getExternalWorkbookNumber() <= 0) {
+                    addPrecedent(workbook, precedents, area.getSheetName(), area.getFirstRow(), area.getLastRow(),
+                            area.getFirstColumn(), area.getLastColumn());
+                }
+            } else if (ptg instanceof RefPtgBase) {
+                RefPtgBase ref = (RefPtgBase) ptg;
+                precedents.add(new Precedent(null, ref.getRow(), ref.getRow(), ref.getColumn(), ref.getColumn()));
+            } else if (ptg instanceof AreaPtgBase) {
+                AreaPtgBase area = (AreaPtgBase) ptg;
+                precedents.add(new Precedent(null, area.getFirstRow(), area.getLastRow(), area.getFirstColumn(),
+                        area.getLastColumn()));
+            } else if (ptg instanceof NamePtg || ptg instanceof NameXPxg) {
+                alwaysAffected = true;
+            } else if (ptg instanceof AbstractFunctionPtg
+                    && VOLATILE_FUNCTIONS.contains(((AbstractFunctionPtg) ptg).getName())) {
+                alwaysAffected = true;
+            }
+        }
+        return new Formula(sheetName, cell.getRowIndex(), cell.getColumnIndex(), alwaysAffected,
+                precedents.toArray(new Precedent[0]));
+    }
+
+    /**
+     * シート名を指定した参照を追加します。シート名はワークブック上の表記にそろえ、
+     * 存在しないシートへの参照は無視します。
+     */
+    private static void addPrecedent(XSSFWorkbook workbook, List<Precedent> precedents, String sheetName,
+            int firstRow, int lastRow, int firstColumn, int lastColumn) {
+        int sheetIndex = workbook.getSheetIndex(sheetName);
+        if (sheetIndex < 0) {
+            return;
+        }
+        precedents.add(new Precedent(workbook.getSheetName(sheetIndex), firstRow, lastRow, firstColumn,
+                lastColumn));
+    }
+
+    /**
+     * 数式が参照するセル範囲にある数式に、参照元の数式を依存先として登録します。
+     */
+    private void linkDependents(HashMap<String, TreeMap<Integer, TreeMap<Integer, Integer>>> positions) {
+        ArrayList<ArrayList<Integer>> sameSheetDependents = new ArrayList<>();
+        ArrayList<ArrayList<Integer>> otherSheetDependents = new ArrayList<>();
+        for (int i = 0; i < formulas.size(); i++) {
+            sameSheetDependents.add(new ArrayList<>());
+            otherSheetDependents.add(new ArrayList<>());
+        }
+        for (int i = 0; i < formulas.size(); i++) {
+            Formula formula = formulas.get(i);
+            for (Precedent precedent : formula.precedents) {
+                String sheetName = precedent.sheetName != null ? precedent.sheetName : formula.sheetName;
+                ArrayList<ArrayList<Integer>> dependents = precedent.sheetName != null ? otherSheetDependents
+                        : sameSheetDependents;
+                for (TreeMap<Integer, Integer> rows : positions.get(sheetName)
+                        .subMap(precedent.firstColumn, true, precedent.lastColumn, true).values()) {
+                    for (int precedentFormula : rows.subMap(precedent.firstRow, true, precedent.lastRow, true)
+                            .values()) {
+                        dependents.get(precedentFormula).add(i);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < formulas.size(); i++) {
+            formulas.get(i).sameSheetDependents = toArray(sameSheetDependents.get(i));
+            formulas.get(i).otherSheetDependents = toArray(otherSheetDependents.get(i));
+        }
+    }
+
+    /**
+     * 索引を出力ストリームに書き込みます。
+     *
+     * @param output 出力先のストリーム
+     * @throws IOException 書き込み中にエラーが発生した場合
+     */
+    void write(DataOutputStream output) throws IOException {
+        output.writeInt(formulas.size());
+        for (Formula formula : formulas) {
+            output.writeUTF(formula.sheetName);
+            output.writeInt(formula.rowIndex);
+            output.writeInt(formula.columnIndex);
+            output.writeBoolean(formula.alwaysAffected);
+            output.writeInt(formula.precedents.length);
+            for (Precedent precedent : formula.precedents) {
+                output.writeBoolean(precedent.sheetName != null);
+                if (precedent.sheetName != null) {
+                    output.writeUTF(precedent.sheetName);
+                }
+                output.writeInt(precedent.firstRow);
+                output.writeInt(precedent.lastRow);
+                output.writeInt(precedent.firstColumn);
+                output.writeInt(precedent.lastColumn);
+            }
+            writeArray(output, formula.sameSheetDependents);
+            writeArray(output, formula.otherSheetDependents);
+        }
+    }
+
+    /**
+     * {@link #write(DataOutputStream)} で書き込んだ索引を読み込みます。
+     *
+     * @param input 入力元のストリーム
+     * @return 読み込んだ索引
+     * @throws IOException 読み込み中にエラーが発生した場合
+     */
+    static TemplateFormulaIndex read(DataInputStream input) throws IOException {
+        TemplateFormulaIndex formulaIndex = new TemplateFormulaIndex();
+        int formulaCount = input.readInt();
+        for (int i = 0; i < formulaCount; i++) {
+            String sheetName = input.readUTF();
+            int rowIndex = input.readInt();
+            int columnIndex = input.readInt();
+            boolean alwaysAffected = input.readBoolean();
+            Precedent[] precedents = new Precedent[input.readInt()];
+            for (int j = 0; j < precedents.length; j++) {
+                String precedentSheetName = input.readBoolean() ? input.readUTF() : null;
+                precedents[j] = new Precedent(precedentSheetName, input.readInt(), input.readInt(),
+                        input.readInt(), input.readInt());
+            }
+            Formula formula = new Formula(sheetName, rowIndex, columnIndex, alwaysAffected, precedents);
+            formula.sameSheetDependents = readArray(input);
+            formula.otherSheetDependents = readArray(input);
+            formulaIndex.formulas.add(formula);
+        }
+        return formulaIndex;
+    }
+
+    private static void writeArray(DataOutputStream output, int[] array) throws IOException {
+        output.writeInt(array.length);
+        for (int value : array) {
+            output.writeInt(value);
+        }
+    }
+
+    private static int[] readArray(DataInputStream input) throws IOException {
+        int[] array = new int[input.readInt()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = input.readInt();
+        }
+        return array;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * 索引の数式の数を取得します。
+     *
+     * @return 数式の数
+     */
+    public int size() {
+        return formulas.size();
+    }
+
+    /**
+     * 指定された番号の数式を取得します。
+     */
+    Formula getFormula(int formulaNo) {
+        return formulas.get(formulaNo);
+    }
+}
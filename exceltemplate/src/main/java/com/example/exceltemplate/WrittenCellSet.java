@@ -0,0 +1,125 @@
+package com.example.exceltemplate;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+
+/**
+ * データセクションで値を書き込んだセルの位置を、シートごとに記録します。
+ *
+ * <p>
+ * {@link FormulaRecalculator} が、書き込んだセルを参照する数式を探すために使用します。
+ * シートはオブジェクトの同一性で区別するため、シート名の変更や複製の影響を受けません。
+ * </p>
+ */
+public class WrittenCellSet {
+    /** シート → 列番号 → 書き込んだ行番号の集合 */
+    private final IdentityHashMap<XSSFSheet, HashMap<Integer, BitSet>> sheets = new IdentityHashMap<>();
+
+    /**
+     * 値を書き込んだセルを記録します。
+     *
+     * @param sheet       シート
+     * @param rowIndex    行番号
+     * @param columnIndex 列番号
+     */
+    public void add(XSSFSheet sheet, int rowIndex, int columnIndex) {
+        sheets.computeIfAbsent(sheet, key -> new HashMap<>())
+                .computeIfAbsent(columnIndex, key -> new BitSet())
+                .set(rowIndex);
+    }
+
+    /**
+     * 値を書き込んだセルかを判定します。
+     *
+     * @param sheet       シート
+     * @param rowIndex    行番号
+     * @param columnIndex 列番号
+     * @return 値を書き込んだセルの場合はtrue
+     */
+    public boolean contains(XSSFSheet sheet, int rowIndex, int columnIndex) {
+        HashMap<Integer, BitSet> columns = sheets.get(sheet);
+        if (columns == null) {
+            return false;
+        }
+        BitSet rows = columns.get(columnIndex);
+        return rows != null && rows.get(rowIndex);
+    }
+
+    /**
+     * 指定された範囲に、値を書き込んだセルがあるかを判定します。
+     *
+     * @param sheet       シート
+     * @param firstRow    範囲の先頭の行番号
+     * @param lastRow     範囲の末尾の行番号
+     * @param firstColumn 範囲の先頭の列番号
+     * @param lastColumn  範囲の末尾の列番号
+     * @return 値を書き込んだセルがある場合はtrue
+     */
+    public boolean intersects(XSSFSheet sheet, int firstRow, int lastRow, int firstColumn, int lastColumn) {
+        HashMap<Integer, BitSet> columns = sheets.get(sheet);
+        if (columns == null) {
+            return false;
+        }
+        // 列全体の参照（A:Aなど）もあるため、範囲の列数と書き込んだ列数の少ない方で調べる
+        if ((long) lastColumn - firstColumn + 1 > columns.size()) {
+            for (Map.Entry<Integer, BitSet> entry : columns.entrySet()) {
+                int columnIndex = entry.getKey();
+                if (columnIndex >= firstColumn && columnIndex <= lastColumn
+                        && intersects(entry.getValue(), firstRow, lastRow)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int columnIndex = firstColumn; columnIndex <= lastColumn; columnIndex++) {
+            BitSet rows = columns.get(columnIndex);
+            if (rows != null && intersects(rows, firstRow, lastRow)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean intersects(BitSet rows, int firstRow, int lastRow) {
+        int rowIndex = rows.nextSetBit(firstRow);
+        return rowIndex >= 0 && rowIndex <= lastRow;
+    }
+
+    /**
+     * 複製元のシートに書き込んだセルを、複製したシートにも記録します。
+     * 複製したシートには、複製元に書き込んだ値が含まれるためです。
+     *
+     * @param sourceSheet 複製元のシート
+     * @param clonedSheet 複製したシート
+     */
+    public void copy(XSSFSheet sourceSheet, XSSFSheet clonedSheet) {
+        HashMap<Integer, BitSet> columns = sheets.get(sourceSheet);
+        if (columns == null) {
+            return;
+        }
+        HashMap<Integer, BitSet> clonedColumns = sheets.computeIfAbsent(clonedSheet, key -> new HashMap<>());
+        for (Map.Entry<Integer, BitSet> entry : columns.entrySet()) {
+            clonedColumns.computeIfAbsent(entry.getKey(), key -> new BitSet()).or(entry.getValue());
+        }
+    }
+
+    /**
+     * 記録したセルが無いかを判定します。
+     *
+     * @return 記録したセルが無い場合はtrue
+     */
+    public boolean isEmpty() {
+        return sheets.isEmpty();
+    }
+
+    /**
+     * 記録したセルをすべて削除します。
+     */
+    public void clear() {
+        sheets.clear();
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.exceltemplate;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.Map;
+
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FormulaRecalculatorTest {
+
+    private XSSFWorkbook workbook;
+    private XSSFSheet sheet1;
+    private XSSFSheet sheet2;
+
+    @BeforeEach
+    void setUp() {
+        // 数式の計算結果は、テンプレートに保存されていた値として0のままにしておく
+        workbook = new XSSFWorkbook();
+        sheet1 = workbook.createSheet("Sheet1");
+        XSSFRow row = sheet1.createRow(0);
+        row.createCell(1).setCellFormula("A1*2");
+        row.createCell(2).setCellFormula("B1+1");
+        row.createCell(3).setCellFormula("E1+1");
+        row.createCell(4).setCellValue(5);
+        sheet2 = workbook.createSheet("Sheet2");
+        sheet2.createRow(0).createCell(0).setCellFormula("Sheet1!C1");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        workbook.close();
+    }
+
+    private static double getValue(XSSFSheet sheet, int columnIndex) {
+        return sheet.getRow(0).getCell(columnIndex).getNumericCellValue();
+    }
+
+    private static void write(WrittenCellSet writtenCells, XSSFSheet sheet, double value) {
+        SheetLineSink.setCellValue(sheet, 0, 0, value);
+        writtenCells.add(sheet, 0, 0);
+    }
+
+    @Test
+    void testRecalculateOnlyDependentFormulas() {
+        FormulaRecalculator formulaRecalculator = new FormulaRecalculator(TemplateFormulaIndex.build(workbook),
+                workbook);
+        WrittenCellSet writtenCells = new WrittenCellSet();
+        write(writtenCells, sheet1, 10);
+
+        // 書き込んだセルを間接的に参照する数式も、別シートの数式も再計算する
+        assertThat(formulaRecalculator.recalculate(workbook, writtenCells)).isEqualTo(3);
+        assertThat(getValue(sheet1, 1)).isEqualTo(20);
+        assertThat(getValue(sheet1, 2)).isEqualTo(21);
+        assertThat(getValue(sheet2, 0)).isEqualTo(21);
+        // 書き込んだセルに依存しない数式は再計算しない
+        assertThat(getValue(sheet1, 3)).isEqualTo(0);
+    }
+
+    @Test
+    void testRecalculateCancelled() {
+        FormulaRecalculator formulaRecalculator = new FormulaRecalculator(TemplateFormulaIndex.build(workbook),
+                workbook);
+        WrittenCellSet writtenCells = new WrittenCellSet();
+        write(writtenCells, sheet1, 10);
+        ReportCancellationToken cancellationToken = new ReportCancellationToken();
+        cancellationToken.cancel();
+
+        assertThatThrownBy(() -> formulaRecalculator.recalculate(workbook, writtenCells, cancellationToken))
+                .isInstanceOf(ReportCancelledException.class);
+        assertThat(getValue(sheet1, 1)).isEqualTo(0);
+    }
+
+    @Test
+    void testRecalculateClonedSheet() {
+        FormulaRecalculator formulaRecalculator = new FormulaRecalculator(TemplateFormulaIndex.build(workbook),
+                workbook);
+        XSSFSheet clonedSheet = workbook.cloneSheet(0, "Copy");
+        WrittenCellSet writtenCells = new WrittenCellSet();
+        formulaRecalculator.addClonedSheets(Map.of(clonedSheet, sheet1), writtenCells);
+        write(writtenCells, clonedSheet, 7);
+
+        // 複製したシートの数式は複製自身のセルを参照し、シート名を指定した参照は複製元のシートを参照する
+        assertThat(formulaRecalculator.recalculate(workbook, writtenCells)).isEqualTo(2);
+        assertThat(getValue(clonedSheet, 1)).isEqualTo(14);
+        assertThat(getValue(clonedSheet, 2)).isEqualTo(15);
+        assertThat(getValue(sheet1, 1)).isEqualTo(0);
+        assertThat(getValue(sheet2, 0)).isEqualTo(0);
+    }
+
+    @Test
+    void testRecalculateSheetRenamedByPlan() {
+        FormulaRecalculator formulaRecalculator = new FormulaRecalculator(TemplateFormulaIndex.build(workbook),
+                workbook);
+        // 複製してから削除するシートは、最初の複製を名前変更で代用する
+        SheetOperationPlan plan = new SheetOperationPlan(workbook);
+        plan.clone("NAME=Sheet2", "CHANGE=明細1");
+        plan.clone("NAME=Sheet2", "CHANGE=明細2");
+        plan.delete("NAME=Sheet2");
+        plan.apply();
+        WrittenCellSet writtenCells = new WrittenCellSet();
+        formulaRecalculator.addClonedSheets(plan.getClonedSheets(), writtenCells);
+        write(writtenCells, sheet1, 10);
+
+        // 名前変更したシートもテンプレートのシート名で索引の数式を持ち、複製と同様に再計算する
+        assertThat(workbook.getSheet("明細1")).isSameAs(sheet2);
+        XSSFSheet clonedSheet = workbook.getSheet("明細2");
+        assertThat(formulaRecalculator.recalculate(workbook, writtenCells)).isEqualTo(4);
+        assertThat(getValue(sheet2, 0)).isEqualTo(21);
+        assertThat(getValue(clonedSheet, 0)).isEqualTo(21);
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.exceltemplate;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+
+class ReportListWriterTest {
+
+    private static ReportFormatField createField(String fieldName, String location) {
+        ReportFormatField field = new ReportFormatField();
+        field.setFieldName(fieldName);
+        field.setLocation(location);
+        field.setTotalRecName("");
+        return field;
+    }
+
+    private static String getCellText(XSSFSheet sheet, int rowIndex, int columnIndex) {
+        Row row = sheet.getRow(rowIndex);
+        Cell cell = row == null ? null : row.getCell(columnIndex);
+        if (cell == null) {
+            return null;
+        }
+        return cell.getCellType() == CellType.NUMERIC ? Double.toString(cell.getNumericCellValue())
+                : cell.getStringCellValue();
+    }
+
+    @Test
+    void testCreateWithoutListControlledField() {
+        HashMap<String, ReportFormatField> fieldMap = new HashMap<>();
+        fieldMap.put("作成日", createField("作成日", "A1"));
+
+        assertThat(ReportListWriter.create(fieldMap, new String[] { "作成日" })).isNull();
+    }
+
+    @Test
+    void testWriteWithGroupTotal() throws Exception {
+        HashMap<String, ReportFormatField> fieldMap = new HashMap<>();
+        ReportFormatField branch = createField("支店", "A2");
+        branch.setKeyNum(1);
+        branch.setGroupSuppress(true);
+        fieldMap.put("支店", branch);
+        fieldMap.put("商品", createField("商品", "B2"));
+        ReportFormatField amount = createField("金額", "C2");
+        amount.setTotalRecName("小計");
+        amount.setClearAccumulateCount(true);
+        fieldMap.put("金額", amount);
+
+        String[] header = { "商品", "支店", "金額", "備考" };
+        ReportListWriter listWriter = ReportListWriter.create(fieldMap, header);
+        assertThat(listWriter).isNotNull();
+
+        try (XSSFWorkbook workbook = new XSSFWorkbook();
+                ReportRecordStore store = listWriter.createRecordStore(Long.MAX_VALUE)) {
+            for (String[] data : List.of(
+                    new String[] { "りんご", "大阪", "100", "x" },
+                    new String[] { "みかん", "東京", "200", "y" },
+                    new String[] { "ぶどう", "大阪", "300", "z" })) {
+                store.add(listWriter.selectValues(data));
+            }
+            XSSFSheet sheet = workbook.createSheet();
+            listWriter.write(store.sortedIterator(), sheet);
+
+            // 大阪の明細2行、小計、東京の明細1行、小計、総計
+            assertThat(getCellText(sheet, 1, 0)).isEqualTo("大阪");
+            assertThat(getCellText(sheet, 1, 1)).isEqualTo("りんご");
+            assertThat(getCellText(sheet, 2, 0)).isNull();
+            assertThat(getCellText(sheet, 2, 1)).isEqualTo("ぶどう");
+            assertThat(getCellText(sheet, 3, 0)).isEqualTo("大阪");
+            assertThat(getCellText(sheet, 3, 2)).isEqualTo("400.0");
+            assertThat(getCellText(sheet, 4, 0)).isEqualTo("東京");
+            assertThat(getCellText(sheet, 5, 2)).isEqualTo("200.0");
+            assertThat(getCellText(sheet, 6, 0)).isNull();
+            assertThat(getCellText(sheet, 6, 2)).isEqualTo("600.0");
+        }
+    }
+
+    @Test
+    void testWriteTotalAboveDoublePrecision() throws Exception {
+        HashMap<String, ReportFormatField> fieldMap = new HashMap<>();
+        ReportFormatField amount = createField("金額", "A2");
+        amount.setTotalRecName("総計");
+        fieldMap.put("金額", amount);
+        ReportFormatField rate = createField("率", "B2");
+        rate.setTotalRecName("総計");
+        fieldMap.put("率", rate);
+
+        ReportListWriter listWriter = ReportListWriter.create(fieldMap, new String[] { "金額", "率" });
+        try (XSSFWorkbook workbook = new XSSFWorkbook();
+                ReportRecordStore store = listWriter.createRecordStore(Long.MAX_VALUE)) {
+            // 2^53 + 1 はdoubleで正確に表せない
+            store.add(listWriter.selectValues(new String[] { "9007199254740992", "0.1" }));
+            store.add(listWriter.selectValues(new String[] { "1", "0.2" }));
+            XSSFSheet sheet = workbook.createSheet();
+            listWriter.write(store.sortedIterator(), sheet);
+
+            // doubleで表せない合計は正確な値の文字列、表せる合計は数値として出力する
+            assertThat(sheet.getRow(3).getCell(0).getCellType()).isEqualTo(CellType.STRING);
+            assertThat(getCellText(sheet, 3, 0)).isEqualTo("9007199254740993");
+            assertThat(sheet.getRow(3).getCell(1).getCellType()).isEqualTo(CellType.NUMERIC);
+            assertThat(getCellText(sheet, 3, 1)).isEqualTo("0.3");
+        }
+    }
+}
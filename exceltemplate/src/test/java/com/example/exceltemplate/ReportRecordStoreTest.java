@@ -0,0 +1,130 @@
+package com.example.exceltemplate;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReportRecordStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static List<String> readColumn(Iterator<String[]> iterator, int column) {
+        List<String> values = new ArrayList<>();
+        while (iterator.hasNext()) {
+            values.add(iterator.next()[column]);
+        }
+        return values;
+    }
+
+    @Test
+    void testCompareValues() {
+        assertThat(ReportRecordStore.compareValues("9", "10")).isNegative();
+        assertThat(ReportRecordStore.compareValues("", "1")).isNegative();
+        assertThat(ReportRecordStore.compareValues("10", "007")).isNegative();
+        assertThat(ReportRecordStore.compareValues("abc", "abd")).isNegative();
+        assertThat(ReportRecordStore.compareValues("-1", "-1")).isZero();
+    }
+
+    @Test
+    void testSortedIteratorIsStable() throws Exception {
+        try (ReportRecordStore store = new ReportRecordStore(2, new int[] { 0 }, new boolean[] { false },
+                Long.MAX_VALUE)) {
+            store.add(new String[] { "10", "a" });
+            store.add(new String[] { "9", "b" });
+            store.add(new String[] { "10", "c" });
+            store.add(new String[] { "東京", "d" });
+            store.add(new String[] { "9", "e" });
+
+            assertThat(readColumn(store.sortedIterator(), 1)).containsExactly("b", "e", "a", "c", "d");
+            assertThat(store.getRunCount()).isZero();
+        }
+    }
+
+    @Test
+    void testSortedIteratorWithSpill() throws Exception {
+        List<String> expected = new ArrayList<>();
+        try (ReportRecordStore store = new ReportRecordStore(2, new int[] { 0 }, new boolean[] { true }, 256)) {
+            for (int i = 0; i < 100; i++) {
+                store.add(new String[] { Integer.toString(i % 10), Integer.toString(i) });
+            }
+            for (int key = 9; key >= 0; key--) {
+                for (int i = key; i < 100; i += 10) {
+                    expected.add(Integer.toString(i));
+                }
+            }
+
+            assertThat(store.getRunCount()).isPositive();
+            assertThat(readColumn(store.sortedIterator(), 1)).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void testSortedIteratorWithoutKey() throws Exception {
+        try (ReportRecordStore store = new ReportRecordStore(1, new int[0], new boolean[0], 64)) {
+            for (int i = 0; i < 20; i++) {
+                store.add(new String[] { "value" + (19 - i) });
+            }
+
+            List<String> values = readColumn(store.sortedIterator(), 0);
+            assertThat(values).hasSize(20);
+            assertThat(values.get(0)).isEqualTo("value19");
+            assertThat(values.get(19)).isEqualTo("value0");
+        }
+    }
+
+    @Test
+    void testCloseDeletesSpillFilesWhileReading() throws Exception {
+        Path spillDirectory = tempDir.resolve("spill");
+        try (ReportRecordStore store = new ReportRecordStore(1, new int[] { 0 }, new boolean[] { false }, 64,
+                spillDirectory)) {
+            for (int i = 0; i < 20; i++) {
+                store.add(new String[] { Integer.toString(i) });
+            }
+            assertThat(store.getRunCount()).isPositive();
+            try (Stream<Path> files = Files.list(spillDirectory)) {
+                assertThat(files).hasSize(store.getRunCount());
+            }
+
+            // 取り消しなどで途中まで読み込んだ場合も、クローズで一時ファイルを削除する
+            store.sortedIterator().next();
+        }
+
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void testTruncatedSpillFileIsError() throws Exception {
+        Path spillDirectory = tempDir.resolve("spill");
+        try (ReportRecordStore store = new ReportRecordStore(2, new int[] { 0 }, new boolean[] { false }, 64,
+                spillDirectory)) {
+            for (int i = 0; i < 20; i++) {
+                store.add(new String[] { Integer.toString(i), "value" });
+            }
+            assertThat(store.getRunCount()).isPositive();
+            // 一時ファイルの末尾を切り詰め、最後のレコードを途中で終わらせる
+            try (Stream<Path> files = Files.list(spillDirectory)) {
+                for (Path runFile : files.toList()) {
+                    byte[] bytes = Files.readAllBytes(runFile);
+                    Files.write(runFile, Arrays.copyOf(bytes, bytes.length - 1));
+                }
+            }
+
+            // 途中で終わったレコードは、一時ファイルの終端として扱わずにエラーにする
+            assertThatThrownBy(() -> readColumn(store.sortedIterator(), 0))
+                    .isInstanceOf(UncheckedIOException.class);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.exceltemplate;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class ReportSchedulerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private ReportUtility mockReportUtility;
+    private ReportScheduler scheduler;
+    private CountDownLatch blockerLatch;
+    private List<String> executedFileNames;
+
+    @BeforeEach
+    void setUp() {
+        mockReportUtility = mock(ReportUtility.class);
+        blockerLatch = new CountDownLatch(1);
+        executedFileNames = Collections.synchronizedList(new ArrayList<>());
+        when(mockReportUtility.outputReport(any(File.class), anyString(), any(ReportCancellationToken.class)))
+                .thenAnswer(invocation -> {
+                    File file = invocation.getArgument(0);
+                    ReportCancellationToken cancellationToken = invocation.getArgument(2);
+                    if (file.getName().startsWith("blocker")) {
+                        blockerLatch.await(10, TimeUnit.SECONDS);
+                    }
+                    if (file.getName().startsWith("endless")) {
+                        // 取り消されるまで終わらない帳票作成
+                        while (true) {
+                            cancellationToken.throwIfCancelled();
+                            Thread.sleep(10);
+                        }
+                    }
+                    executedFileNames.add(file.getName());
+                    return file.getName();
+                });
+
+        scheduler = new ReportScheduler();
+        ReflectionTestUtils.setField(scheduler, "reportUtility", mockReportUtility);
+        ReflectionTestUtils.setField(scheduler, "tenantMaxConcurrency", 1);
+        ReflectionTestUtils.setField(scheduler, "agingMillis", 30000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.destroy();
+    }
+
+    private File createDataFile(String fileName, int size) throws Exception {
+        return Files.write(tempDir.resolve(fileName), new byte[size]).toFile();
+    }
+
+    private void waitForRunningCount(int runningCount) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.getStatistics(ReportPriority.NORMAL).getRunningCount() != runningCount
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void testInteractiveJobRunsBeforeQueuedBatchJob() throws Exception {
+        ReflectionTestUtils.setField(scheduler, "workerCount", 1);
+        CompletableFuture<String> blocker = scheduler.submit(createDataFile("blocker.csv", 10), "EXCEL", "A",
+                ReportPriority.NORMAL);
+        CompletableFuture<String> batch = scheduler.submit(createDataFile("batch.csv", 10000), "EXCEL", "B",
+                ReportPriority.BATCH);
+        CompletableFuture<String> interactive = scheduler.submit(createDataFile("interactive.csv", 100), "EXCEL",
+                "C", ReportPriority.INTERACTIVE);
+
+        assertThat(scheduler.getStatistics(ReportPriority.BATCH).getQueueDepth()).isEqualTo(1);
+        assertThat(scheduler.getStatistics(ReportPriority.INTERACTIVE).getQueueDepth()).isEqualTo(1);
+
+        blockerLatch.countDown();
+        CompletableFuture.allOf(blocker, batch, interactive).get(10, TimeUnit.SECONDS);
+
+        assertThat(executedFileNames).containsExactly("blocker.csv", "interactive.csv", "batch.csv");
+        assertThat(scheduler.getStatistics(ReportPriority.BATCH).getStartedCount()).isEqualTo(1);
+        assertThat(scheduler.getStatistics(ReportPriority.BATCH).getQueueDepth()).isZero();
+    }
+
+    @Test
+    void testTenantConcurrencyLimit() throws Exception {
+        ReflectionTestUtils.setField(scheduler, "workerCount", 2);
+        CompletableFuture<String> blocker = scheduler.submit(createDataFile("blocker.csv", 10), "EXCEL", "A",
+                ReportPriority.NORMAL);
+        CompletableFuture<String> sameTenant = scheduler.submit(createDataFile("same.csv", 10), "EXCEL", "A",
+                ReportPriority.NORMAL);
+        CompletableFuture<String> otherTenant = scheduler.submit(createDataFile("other.csv", 10), "EXCEL", "B",
+                ReportPriority.NORMAL);
+
+        // テナントAは同時実行数の上限に達しているため、テナントBのジョブが先に実行される
+        assertThat(otherTenant.get(10, TimeUnit.SECONDS)).isEqualTo("other.csv");
+        assertThat(sameTenant.isDone()).isFalse();
+
+        blockerLatch.countDown();
+        assertThat(sameTenant.get(10, TimeUnit.SECONDS)).isEqualTo("same.csv");
+        assertThat(blocker.get(10, TimeUnit.SECONDS)).isEqualTo("blocker.csv");
+    }
+
+    @Test
+    void testCancelRunningJob() throws Exception {
+        ReflectionTestUtils.setField(scheduler, "workerCount", 1);
+        CompletableFuture<String> endless = scheduler.submit(createDataFile("endless.csv", 10), "EXCEL", "A",
+                ReportPriority.NORMAL);
+        CompletableFuture<String> next = scheduler.submit(createDataFile("next.csv", 10), "EXCEL", "B",
+                ReportPriority.NORMAL);
+
+        endless.cancel(true);
+
+        // 取り消したジョブが中断され、次のジョブが実行される
+        assertThat(next.get(10, TimeUnit.SECONDS)).isEqualTo("next.csv");
+        ReportSchedulerStatistics statistics = scheduler.getStatistics(ReportPriority.NORMAL);
+        assertThat(statistics.getCancelledCount()).isEqualTo(1);
+        assertThat(statistics.getTimedOutCount()).isZero();
+        assertThat(statistics.getFailedCount()).isZero();
+    }
+
+    @Test
+    void testTimeoutIsCountedSeparatelyFromFailure() throws Exception {
+        ReflectionTestUtils.setField(scheduler, "workerCount", 1);
+        CompletableFuture<String> endless = scheduler.submit(createDataFile("endless.csv", 10), "EXCEL", "A",
+                ReportPriority.NORMAL, Duration.ofMillis(100));
+
+        assertThatThrownBy(() -> endless.get(10, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(ReportCancelledException.class);
+        ReportCancelledException cancelledException = (ReportCancelledException) endless.handle((result, e) -> e)
+                .get();
+        assertThat(cancelledException.isTimedOut()).isTrue();
+
+        // Futureの完了後に統計情報が更新されるため、ジョブの終了を待つ
+        scheduler.submit(createDataFile("after.csv", 10), "EXCEL", "A", ReportPriority.NORMAL)
+                .get(10, TimeUnit.SECONDS);
+        ReportSchedulerStatistics statistics = scheduler.getStatistics(ReportPriority.NORMAL);
+        assertThat(statistics.getTimedOutCount()).isEqualTo(1);
+        assertThat(statistics.getCancelledCount()).isZero();
+        assertThat(statistics.getFailedCount()).isZero();
+    }
+
+    @Test
+    void testQueuedJobTimesOutWithoutWaitingForWorker() throws Exception {
+        ReflectionTestUtils.setField(scheduler, "workerCount", 1);
+        CompletableFuture<String> blocker = scheduler.submit(createDataFile("blocker.csv", 10), "EXCEL", "A",
+                ReportPriority.NORMAL);
+        waitForRunningCount(1);
+        CompletableFuture<String> queued = scheduler.submit(createDataFile("queued.csv", 10), "EXCEL", "B",
+                ReportPriority.NORMAL, Duration.ofMillis(100));
+
+        // ワーカーが空いていなくても、期限の時点でFutureが終了し、キューから取り除かれる
+        assertThatThrownBy(() -> queued.get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(ReportCancelledException.class);
+        ReportSchedulerStatistics statistics = scheduler.getStatistics(ReportPriority.NORMAL);
+        assertThat(statistics.getQueueDepth()).isZero();
+        assertThat(statistics.getTimedOutCount()).isEqualTo(1);
+        assertThat(blocker).isNotDone();
+
+        blockerLatch.countDown();
+        assertThat(blocker.get(10, TimeUnit.SECONDS)).isEqualTo("blocker.csv");
+        assertThat(executedFileNames).containsExactly("blocker.csv");
+    }
+
+    @Test
+    void testDestroyCancelsQueuedJobs() throws Exception {
+        ReflectionTestUtils.setField(scheduler, "workerCount", 1);
+        CompletableFuture<String> blocker = scheduler.submit(createDataFile("blocker.csv", 10), "EXCEL", "A",
+                ReportPriority.NORMAL);
+        CompletableFuture<String> queued = scheduler.submit(createDataFile("queued.csv", 10), "EXCEL", "B",
+                ReportPriority.NORMAL);
+        waitForRunningCount(1);
+
+        scheduler.destroy();
+
+        // 実行待ちのジョブのFutureは取り消され、待っている呼び出し元が終わらなくなることはない
+        assertThatThrownBy(() -> queued.get(10, TimeUnit.SECONDS)).isInstanceOf(CancellationException.class);
+        assertThatThrownBy(() -> blocker.get(10, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class);
+        assertThat(executedFileNames).isEmpty();
+        // 停止後のジョブは受け付けない
+        File dataFile = createDataFile("after.csv", 10);
+        assertThatThrownBy(() -> scheduler.submit(dataFile, "EXCEL", "A", ReportPriority.NORMAL))
+                .isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    void testTenantRunningCountIsRemovedWhenJobsFinish() throws Exception {
+        ReflectionTestUtils.setField(scheduler, "workerCount", 2);
+        CompletableFuture.allOf(
+                scheduler.submit(createDataFile("a.csv", 10), "EXCEL", "A", ReportPriority.NORMAL),
+                scheduler.submit(createDataFile("b.csv", 10), "EXCEL", "B", ReportPriority.NORMAL))
+                .get(10, TimeUnit.SECONDS);
+
+        // Futureの完了後に実行中のジョブ数が更新されるため、ジョブの終了を待つ
+        waitForRunningCount(0);
+        Map<?, ?> tenantRunningCounts = (Map<?, ?>) ReflectionTestUtils.getField(scheduler, "tenantRunningCounts");
+        synchronized (scheduler) {
+            assertThat(tenantRunningCounts).isEmpty();
+        }
+    }
+}
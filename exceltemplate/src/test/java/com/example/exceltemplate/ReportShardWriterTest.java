@@ -0,0 +1,193 @@
+package com.example.exceltemplate;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReportShardWriterTest {
+
+    private static final CellReference[] CELL_REFERENCES = { new CellReference("A3") };
+
+    @TempDir
+    Path tempDir;
+
+    private static XSSFWorkbook createWorkbook() {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet sheet = workbook.createSheet("明細");
+        sheet.createRow(0).createCell(0).setCellValue("タイトル");
+        return workbook;
+    }
+
+    private static String getCellText(XSSFSheet sheet, int rowIndex) {
+        Row row = sheet.getRow(rowIndex);
+        Cell cell = row == null ? null : row.getCell(0);
+        return cell == null ? null : cell.getStringCellValue();
+    }
+
+    private static void writeLines(ReportLineSink sink, int count) {
+        for (int lineNo = 0; lineNo < count; lineNo++) {
+            sink.writeLine(lineNo, CELL_REFERENCES, new Object[] { String.valueOf(lineNo + 1) });
+        }
+    }
+
+    private static String[] readCellTexts(Path shardFilePath, int... rowIndexes) throws Exception {
+        try (InputStream inputStream = Files.newInputStream(shardFilePath);
+                XSSFWorkbook workbook = new XSSFWorkbook(inputStream)) {
+            String[] cellTexts = new String[rowIndexes.length];
+            for (int i = 0; i < rowIndexes.length; i++) {
+                cellTexts[i] = getCellText(workbook.getSheetAt(0), rowIndexes[i]);
+            }
+            return cellTexts;
+        }
+    }
+
+    private void assertShards(List<Path> shardFilePaths) throws Exception {
+        assertThat(shardFilePaths).hasSize(3);
+        String[][] expectedLines = { { "1", "2" }, { "3", "4" }, { "5", null } };
+        for (int i = 0; i < shardFilePaths.size(); i++) {
+            String[] cellTexts = readCellTexts(shardFilePaths.get(i), 0, 2, 3);
+            // 各シャードは同じテンプレートから始まり、明細行は1行目の出力位置から出力される
+            assertThat(cellTexts[0]).isEqualTo("タイトル");
+            assertThat(cellTexts[1]).isEqualTo(expectedLines[i][0]);
+            assertThat(cellTexts[2]).isEqualTo(expectedLines[i][1]);
+        }
+    }
+
+    @Test
+    void testSplitByRows() throws Exception {
+        try (XSSFWorkbook workbook = createWorkbook();
+                ReportShardWriter shardWriter = new ReportShardWriter(tempDir, 2, 0, 2)) {
+            writeLines(shardWriter.createSink(workbook.getSheetAt(0)), 5);
+
+            assertShards(shardWriter.finish(workbook));
+        }
+    }
+
+    @Test
+    void testSplitByEstimatedBytes() throws Exception {
+        // 1行の推定サイズは、行16バイト + セル32バイト + 値1バイト = 49バイト
+        try (XSSFWorkbook workbook = createWorkbook();
+                ReportShardWriter shardWriter = new ReportShardWriter(tempDir, 1000, 100, 2)) {
+            writeLines(shardWriter.createSink(workbook.getSheetAt(0)), 5);
+
+            assertShards(shardWriter.finish(workbook));
+        }
+    }
+
+    @Test
+    void testModifiedWorkbookIsReflectedInLaterShards() throws Exception {
+        try (XSSFWorkbook workbook = createWorkbook();
+                ReportShardWriter shardWriter = new ReportShardWriter(tempDir, 2, 0, 2)) {
+            writeLines(shardWriter.createSink(workbook.getSheetAt(0)), 5);
+            workbook.getSheetAt(0).getRow(0).getCell(0).setCellValue("変更後");
+            shardWriter.markModified();
+
+            // 確定済みのシャードは変更前のスナップショットから、最後のシャードは変更後のワークブックから作成する
+            List<Path> shardFilePaths = shardWriter.finish(workbook);
+            assertThat(shardFilePaths).hasSize(3);
+            assertThat(readCellTexts(shardFilePaths.get(0), 0)).containsExactly("タイトル");
+            assertThat(readCellTexts(shardFilePaths.get(1), 0)).containsExactly("タイトル");
+            assertThat(readCellTexts(shardFilePaths.get(2), 0, 2)).containsExactly("変更後", "5");
+        }
+    }
+
+    @Test
+    void testSplitAtExcelRowLimit() throws Exception {
+        int lastLineNo = SheetLineSink.LAST_ROW_INDEX - 1;
+        try (XSSFWorkbook workbook = createWorkbook();
+                ReportShardWriter shardWriter = new ReportShardWriter(tempDir, Integer.MAX_VALUE, 0, 1)) {
+            ReportLineSink sink = shardWriter.createSink(workbook.getSheetAt(0));
+            sink.writeLine(0, CELL_REFERENCES, new Object[] { "1" });
+            sink.writeLine(lastLineNo, CELL_REFERENCES, new Object[] { "2" });
+
+            List<Path> shardFilePaths = shardWriter.finish(workbook);
+            assertThat(shardFilePaths).hasSize(2);
+            assertThat(readCellTexts(shardFilePaths.get(1), 2)).containsExactly("2");
+        }
+
+        // シャードモード以外は最大行数を超えるとエラーになる
+        try (XSSFWorkbook workbook = createWorkbook()) {
+            SheetLineSink sink = new SheetLineSink(workbook.getSheetAt(0));
+            assertThatThrownBy(() -> sink.writeLine(lastLineNo, CELL_REFERENCES, new Object[] { "2" }))
+                    .isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    void testShareExecutorBetweenWriters() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Semaphore renderPermits = new Semaphore(1);
+        try {
+            for (int i = 0; i < 2; i++) {
+                try (XSSFWorkbook workbook = createWorkbook();
+                        ReportShardWriter shardWriter = new ReportShardWriter(tempDir, 2, 0, executor,
+                                renderPermits, new ReportCancellationToken())) {
+                    writeLines(shardWriter.createSink(workbook.getSheetAt(0)), 5);
+
+                    assertShards(shardWriter.finish(workbook));
+                }
+            }
+
+            // 共有するスレッドプールはクローズで停止せず、作成の許可はすべて返却される
+            assertThat(executor.isShutdown()).isFalse();
+            assertThat(renderPermits.availablePermits()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testCancelledWriterDeletesShards() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Semaphore renderPermits = new Semaphore(2);
+        ReportCancellationToken cancellationToken = new ReportCancellationToken();
+        try (XSSFWorkbook workbook = createWorkbook()) {
+            try (ReportShardWriter shardWriter = new ReportShardWriter(tempDir, 2, 0, executor, renderPermits,
+                    cancellationToken)) {
+                writeLines(shardWriter.createSink(workbook.getSheetAt(0)), 5);
+                cancellationToken.cancel();
+
+                assertThatThrownBy(() -> shardWriter.finish(workbook))
+                        .isInstanceOf(ReportCancelledException.class);
+            }
+        } finally {
+            executor.shutdown();
+            assertThat(executor.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+        }
+
+        // 取り消し後に終わったシャードも含めて、作成を開始したシャードのファイルは残らない
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files).isEmpty();
+        }
+        assertThat(renderPermits.availablePermits()).isEqualTo(2);
+    }
+
+    @Test
+    void testCloseWithoutFinishDeletesShards() throws Exception {
+        try (XSSFWorkbook workbook = createWorkbook()) {
+            ReportShardWriter shardWriter = new ReportShardWriter(tempDir, 2, 0, 2);
+            writeLines(shardWriter.createSink(workbook.getSheetAt(0)), 5);
+            shardWriter.close();
+        }
+
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files).isEmpty();
+        }
+    }
+}
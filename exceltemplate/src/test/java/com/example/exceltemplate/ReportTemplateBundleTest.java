@@ -0,0 +1,107 @@
+package com.example.exceltemplate;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReportTemplateBundleTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testGetBundleFileName() {
+        String result = ReportTemplateBundle.getBundleFileName("sample.xml", "sample.xlsx");
+        assertThat(result).isEqualTo("sample@sample.rptbundle");
+    }
+
+    @Test
+    void testCompileAndRead() throws Exception {
+        Path xmlFilePath = Paths.get("./testdata/xml", "sample.xml");
+        Path templateFilePath = Paths.get("./testdata/template", "sample.xlsx");
+
+        Path bundleFilePath = ReportTemplateBundleCompiler.compile(xmlFilePath, templateFilePath, tempDir);
+        ReportTemplateBundle bundle = ReportTemplateBundle.read(bundleFilePath);
+
+        assertThat(bundle).isNotNull();
+        assertThat(bundle.getReportFormatFieldMap()).containsKey("作成日");
+        assertThat(bundle.getReportFormatFieldMap().get("作成日").getLocation()).isEqualTo("A1");
+        assertThat(bundle.getTemplateBytes()).isEqualTo(Files.readAllBytes(templateFilePath));
+        assertThat(bundle.isUpToDate(xmlFilePath, templateFilePath)).isTrue();
+    }
+
+    @Test
+    void testIsUpToDateWithModifiedSource() throws Exception {
+        Path xmlFilePath = Files.copy(Paths.get("./testdata/xml", "sample.xml"), tempDir.resolve("sample.xml"));
+        Path templateFilePath = Paths.get("./testdata/template", "sample.xlsx");
+
+        ReportTemplateBundle bundle = ReportTemplateBundle.compile(xmlFilePath, templateFilePath);
+        Files.setLastModifiedTime(xmlFilePath,
+                FileTime.fromMillis(Files.getLastModifiedTime(xmlFilePath).toMillis() + 1000));
+
+        assertThat(bundle.isUpToDate(xmlFilePath, templateFilePath)).isFalse();
+    }
+
+    @Test
+    void testIsUpToDateWithMissingSource() throws Exception {
+        Path xmlFilePath = Files.copy(Paths.get("./testdata/xml", "sample.xml"), tempDir.resolve("sample.xml"));
+        Path templateFilePath = Paths.get("./testdata/template", "sample.xlsx");
+
+        ReportTemplateBundle bundle = ReportTemplateBundle.compile(xmlFilePath, templateFilePath);
+        ReportTemplateBundle bundleWithoutSources = ReportTemplateBundle.compile(xmlFilePath, templateFilePath, true);
+        Files.delete(xmlFilePath);
+
+        // 作成元ファイルが削除された場合は、作成元ファイルなしで配置するバンドルだけを使用する
+        assertThat(bundle.isUpToDate(xmlFilePath, templateFilePath)).isFalse();
+        assertThat(bundleWithoutSources.isUpToDate(xmlFilePath, templateFilePath)).isTrue();
+    }
+
+    @Test
+    void testWriteReplacesBundle() throws Exception {
+        Path xmlFilePath = Paths.get("./testdata/xml", "sample.xml");
+        Path templateFilePath = Paths.get("./testdata/template", "sample.xlsx");
+        Path bundleFilePath = tempDir.resolve("sample@sample" + ReportTemplateBundle.BUNDLE_FILE_EXTENSION);
+        Files.write(bundleFilePath, new byte[] { 0, 0, 0, 0 });
+
+        ReportTemplateBundle.compile(xmlFilePath, templateFilePath).write(bundleFilePath);
+
+        // 一時ファイルは残らず、バンドルファイルが置き換えられる
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files).containsExactly(bundleFilePath);
+        }
+        ReportTemplateBundle bundle = ReportTemplateBundle.read(bundleFilePath);
+        assertThat(bundle).isNotNull();
+        assertThat(bundle.getFormulaIndex()).isNotNull();
+    }
+
+    @Test
+    void testReadCached() throws Exception {
+        Path xmlFilePath = Paths.get("./testdata/xml", "sample.xml");
+        Path templateFilePath = Paths.get("./testdata/template", "sample.xlsx");
+        Path bundleFilePath = ReportTemplateBundleCompiler.compile(xmlFilePath, templateFilePath, tempDir);
+
+        ReportTemplateBundle bundle = ReportTemplateBundle.readCached(bundleFilePath);
+        assertThat(bundle).isNotNull();
+        assertThat(ReportTemplateBundle.readCached(bundleFilePath)).isSameAs(bundle);
+
+        // バンドルファイルを作成し直した場合は、新しいバンドルを読み込む
+        Files.setLastModifiedTime(bundleFilePath,
+                FileTime.fromMillis(Files.getLastModifiedTime(bundleFilePath).toMillis() + 1000));
+        assertThat(ReportTemplateBundle.readCached(bundleFilePath)).isNotSameAs(bundle);
+    }
+
+    @Test
+    void testReadWithUnknownFormat() throws Exception {
+        Path bundleFilePath = tempDir.resolve("broken" + ReportTemplateBundle.BUNDLE_FILE_EXTENSION);
+        Files.write(bundleFilePath, new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 });
+
+        assertThat(ReportTemplateBundle.read(bundleFilePath)).isNull();
+    }
+}
@@ -2,8 +2,10 @@ package com.example.exceltemplate;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.nio.file.Paths;
+import java.time.Duration;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -61,4 +63,50 @@ class ReportUtilityTest {
         // Assert
         assertNotNull(result);
     }
+
+    @Test
+    void testOutputReport_Cancelled() {
+        // Arrange
+        File dataFile = Paths.get("./testdata/csv", "data1.csv").toFile();
+        ReportCancellationToken cancellationToken = new ReportCancellationToken();
+        cancellationToken.cancel();
+
+        // Act
+        ReportCancelledException exception = assertThrows(ReportCancelledException.class,
+                () -> reportUtility.outputReport(dataFile, "EXCEL", cancellationToken));
+
+        // Assert
+        assertFalse(exception.isTimedOut());
+    }
+
+    @Test
+    void testOutputReport_TimedOut() {
+        // Arrange
+        File dataFile = Paths.get("./testdata/csv", "data1.csv").toFile();
+        ReportCancellationToken cancellationToken = ReportCancellationToken.withTimeout(Duration.ZERO);
+
+        // Act
+        ReportCancelledException exception = assertThrows(ReportCancelledException.class,
+                () -> reportUtility.outputReport(dataFile, "EXCEL", cancellationToken));
+
+        // Assert
+        assertTrue(exception.isTimedOut());
+    }
+
+    @Test
+    void testOutputReportShardsAsZip_Cancelled() {
+        // Arrange
+        File dataFile = Paths.get("./testdata/csv", "data1.csv").toFile();
+        ReportCancellationToken cancellationToken = new ReportCancellationToken();
+        cancellationToken.cancel();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        // Act
+        ReportCancelledException exception = assertThrows(ReportCancelledException.class,
+                () -> reportUtility.outputReportShardsAsZip(dataFile, "EXCEL", outputStream, cancellationToken));
+
+        // Assert
+        assertFalse(exception.isTimedOut());
+        assertEquals(0, outputStream.size());
+    }
 }
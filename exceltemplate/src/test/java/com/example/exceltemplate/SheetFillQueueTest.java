@@ -0,0 +1,143 @@
+package com.example.exceltemplate;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SheetFillQueueTest {
+
+    private ExecutorService executor;
+    private XSSFWorkbook workbook;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        workbook = new XSSFWorkbook();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        executor.shutdownNow();
+        workbook.close();
+    }
+
+    private static SheetFillBuffer createBuffer(XSSFSheet sheet, String value) {
+        SheetFillBuffer buffer = new SheetFillBuffer(sheet);
+        buffer.setCellValue(0, 0, value);
+        return buffer;
+    }
+
+    private static String getCellText(XSSFSheet sheet) {
+        return sheet.getRow(0).getCell(0).getStringCellValue();
+    }
+
+    @Test
+    void testCommitInSubmittedOrder() throws Exception {
+        XSSFSheet sheet1 = workbook.createSheet("Sheet1");
+        XSSFSheet sheet2 = workbook.createSheet("Sheet2");
+        CountDownLatch latch = new CountDownLatch(1);
+        SheetFillQueue queue = new SheetFillQueue(executor, 4);
+
+        // 先に投入した準備が後から終わっても、適用は投入した順に行う
+        queue.submit(sheet1, () -> {
+            try {
+                latch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return createBuffer(sheet1, "first");
+        });
+        queue.submit(sheet1, () -> createBuffer(sheet1, "second"));
+        queue.submit(sheet2, () -> createBuffer(sheet2, "other"));
+
+        assertThat(queue.hasPendingFills(sheet1)).isTrue();
+        assertThat(sheet1.getRow(0)).isNull();
+
+        latch.countDown();
+        queue.commitAll();
+
+        assertThat(queue.hasPendingFills(sheet1)).isFalse();
+        assertThat(getCellText(sheet1)).isEqualTo("second");
+        assertThat(getCellText(sheet2)).isEqualTo("other");
+    }
+
+    @Test
+    void testSubmitCommitsOldestWhenFull() throws Exception {
+        XSSFSheet sheet1 = workbook.createSheet("Sheet1");
+        XSSFSheet sheet2 = workbook.createSheet("Sheet2");
+        SheetFillQueue queue = new SheetFillQueue(executor, 1);
+
+        queue.submit(sheet1, () -> createBuffer(sheet1, "first"));
+        queue.submit(sheet2, () -> createBuffer(sheet2, "second"));
+
+        assertThat(getCellText(sheet1)).isEqualTo("first");
+        assertThat(queue.hasPendingFills(sheet1)).isFalse();
+        assertThat(queue.hasPendingFills(sheet2)).isTrue();
+    }
+
+    @Test
+    void testCommitRethrowsPreparationError() throws Exception {
+        XSSFSheet sheet = workbook.createSheet("Sheet1");
+        SheetFillQueue queue = new SheetFillQueue(executor, 2);
+
+        queue.submit(sheet, () -> {
+            throw new UncheckedIOException(new IOException("read error"));
+        });
+
+        assertThatThrownBy(queue::commitAll).isInstanceOf(IOException.class).hasMessage("read error");
+    }
+
+    @Test
+    void testCancelAllClosesResourcesOfPendingFills() throws Exception {
+        XSSFSheet sheet = workbook.createSheet("Sheet1");
+        ExecutorService singleExecutor = Executors.newSingleThreadExecutor();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger closedCount = new AtomicInteger();
+        AtomicBoolean isPreparedAfterCancel = new AtomicBoolean();
+        try {
+            SheetFillQueue queue = new SheetFillQueue(singleExecutor, 4);
+            queue.submit(sheet, () -> {
+                started.countDown();
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return createBuffer(sheet, "running");
+            }, closedCount::incrementAndGet);
+            queue.submit(sheet, () -> {
+                isPreparedAfterCancel.set(true);
+                return createBuffer(sheet, "pending");
+            }, closedCount::incrementAndGet);
+            assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+            // 開始前の準備は実行せずにリソースをクローズし、実行中の準備は終了時にリソースをクローズする
+            queue.cancelAll();
+            assertThat(queue.hasPendingFills(sheet)).isFalse();
+            assertThat(closedCount).hasValue(1);
+
+            latch.countDown();
+            singleExecutor.shutdown();
+            assertThat(singleExecutor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(closedCount).hasValue(2);
+            assertThat(isPreparedAfterCancel).isFalse();
+            assertThat(sheet.getRow(0)).isNull();
+        } finally {
+            singleExecutor.shutdownNow();
+        }
+    }
+}
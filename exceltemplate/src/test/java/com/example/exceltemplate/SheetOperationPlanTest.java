@@ -0,0 +1,200 @@
+package com.example.exceltemplate;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+
+class SheetOperationPlanTest {
+
+    private static XSSFWorkbook createWorkbook(String... sheetNames) {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        for (String sheetName : sheetNames) {
+            workbook.createSheet(sheetName).createRow(0).createCell(0).setCellValue(sheetName);
+        }
+        return workbook;
+    }
+
+    private static List<String> getSheetNames(XSSFWorkbook workbook) {
+        List<String> sheetNames = new ArrayList<>();
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            sheetNames.add(workbook.getSheetName(i));
+        }
+        return sheetNames;
+    }
+
+    /** 複製して元シートを削除するスクリプト */
+    private static final String[][] CLONE_THEN_DELETE_SCRIPT = {
+            { "XSSC", "NAME=明細", "CHANGE=P1" },
+            { "XSSC", "NAME=明細", "CHANGE=P2" },
+            { "XSSD", "NAME=明細" },
+            { "XSSA", "NAME=P1" },
+    };
+
+    /**
+     * 明細シートを参照する数式、印刷範囲、ページ設定を持つテンプレートを作成します。
+     */
+    private static XSSFWorkbook createWorkbookWithReferences() {
+        XSSFWorkbook workbook = createWorkbook("表紙", "明細");
+        workbook.getSheet("表紙").getRow(0).createCell(1).setCellFormula("明細!A1");
+        workbook.getSheet("明細").getPrintSetup().setLandscape(true);
+        workbook.setPrintArea(1, "$A$1:$B$2");
+        return workbook;
+    }
+
+    /**
+     * スクリプトのコマンドを、記録順にそのままワークブックに適用します。
+     */
+    private static void applySequentially(XSSFWorkbook workbook, String[][] script) {
+        for (String[] command : script) {
+            int sheetNo = workbook.getSheetIndex(command[1].substring("NAME=".length()));
+            switch (command[0]) {
+                case "XSSA":
+                    workbook.setActiveSheet(sheetNo);
+                    break;
+                case "XSSC":
+                    XSSFSheet sheet = workbook.cloneSheet(sheetNo, command[2].substring("CHANGE=".length()));
+                    workbook.setActiveSheet(workbook.getSheetIndex(sheet));
+                    break;
+                default:
+                    workbook.removeSheetAt(sheetNo);
+                    break;
+            }
+        }
+    }
+
+    private static void applyPlanned(XSSFWorkbook workbook, String[][] script) {
+        SheetOperationPlan plan = new SheetOperationPlan(workbook);
+        for (String[] command : script) {
+            switch (command[0]) {
+                case "XSSA":
+                    plan.activate(command[1]);
+                    break;
+                case "XSSC":
+                    plan.clone(command[1], command[2]);
+                    break;
+                default:
+                    plan.delete(command[1]);
+                    break;
+            }
+        }
+        plan.apply();
+    }
+
+    /**
+     * 比較のため、シート構成、セルの値と数式、ページ設定、コメント、名前を文字列にします。
+     */
+    private static List<String> describe(XSSFWorkbook workbook) {
+        List<String> lines = new ArrayList<>();
+        lines.add("active=" + workbook.getActiveSheetIndex());
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            XSSFSheet sheet = workbook.getSheetAt(i);
+            lines.add("sheet=" + sheet.getSheetName() + ",hidden=" + workbook.isSheetHidden(i)
+                    + ",pageSetup=" + sheet.getCTWorksheet().isSetPageSetup()
+                    + ",comments=" + sheet.getCTWorksheet().isSetLegacyDrawing());
+            for (Row row : sheet) {
+                for (Cell cell : row) {
+                    lines.add(cell.getAddress() + "="
+                            + (cell.getCellType() == CellType.FORMULA ? "=" + cell.getCellFormula() : cell.toString()));
+                }
+            }
+        }
+        for (XSSFName name : workbook.getAllNames()) {
+            lines.add("name=" + name.getNameName() + ",sheet=" + name.getSheetIndex() + ",refersTo="
+                    + name.getRefersToFormula());
+        }
+        return lines;
+    }
+
+    @Test
+    void testPlannedMatchesSequentialWithoutReferences() throws Exception {
+        try (XSSFWorkbook sequential = createWorkbook("表紙", "明細");
+                XSSFWorkbook planned = createWorkbook("表紙", "明細")) {
+            XSSFSheet originalSheet = planned.getSheet("明細");
+            applySequentially(sequential, CLONE_THEN_DELETE_SCRIPT);
+            applyPlanned(planned, CLONE_THEN_DELETE_SCRIPT);
+
+            assertThat(describe(planned)).isEqualTo(describe(sequential));
+            // 参照やページ設定が無いシートは、複製の代わりに名前変更する
+            assertThat(planned.getSheet("P1")).isSameAs(originalSheet);
+        }
+    }
+
+    @Test
+    void testPlannedMatchesSequentialWithReferences() throws Exception {
+        try (XSSFWorkbook sequential = createWorkbookWithReferences();
+                XSSFWorkbook planned = createWorkbookWithReferences()) {
+            XSSFSheet originalSheet = planned.getSheet("明細");
+            applySequentially(sequential, CLONE_THEN_DELETE_SCRIPT);
+            applyPlanned(planned, CLONE_THEN_DELETE_SCRIPT);
+
+            // 数式、印刷範囲、ページ設定が名前変更で維持されないよう、複製してから削除する
+            assertThat(describe(planned)).isEqualTo(describe(sequential));
+            assertThat(planned.getSheet("P1")).isNotSameAs(originalSheet);
+        }
+    }
+
+    @Test
+    void testCloneThenDeleteOriginal() throws Exception {
+        try (XSSFWorkbook workbook = createWorkbook("表紙", "明細")) {
+            SheetOperationPlan plan = new SheetOperationPlan(workbook);
+            plan.clone("NAME=明細", "CHANGE=P1");
+            plan.clone("NAME=明細", "CHANGE=P2");
+            plan.clone("NO=1", "CHANGE=P3");
+            plan.delete("NAME=明細");
+            plan.activate("NAME=P1");
+            plan.apply();
+
+            assertThat(getSheetNames(workbook)).containsExactly("表紙", "P1", "P2", "P3");
+            assertThat(workbook.getActiveSheetIndex()).isEqualTo(1);
+            for (int i = 1; i < workbook.getNumberOfSheets(); i++) {
+                assertThat(workbook.getSheetAt(i).getRow(0).getCell(0).getStringCellValue()).isEqualTo("明細");
+            }
+        }
+    }
+
+    @Test
+    void testCloneThenDeleteClone() throws Exception {
+        try (XSSFWorkbook workbook = createWorkbook("Sheet1", "Sheet2")) {
+            SheetOperationPlan plan = new SheetOperationPlan(workbook);
+            plan.clone("NAME=Sheet1", "CHANGE=Work");
+            plan.delete("NAME=Work");
+            plan.apply();
+
+            assertThat(getSheetNames(workbook)).containsExactly("Sheet1", "Sheet2");
+            assertThat(workbook.getActiveSheetIndex()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void testDeleteThenCloneWithSameName() throws Exception {
+        try (XSSFWorkbook workbook = createWorkbook("Sheet1", "Sheet2")) {
+            SheetOperationPlan plan = new SheetOperationPlan(workbook);
+            plan.delete("NAME=Sheet1");
+            plan.clone("NAME=Sheet2", "CHANGE=Sheet1");
+            plan.apply();
+
+            assertThat(getSheetNames(workbook)).containsExactly("Sheet2", "Sheet1");
+            assertThat(workbook.getSheetAt(1).getRow(0).getCell(0).getStringCellValue()).isEqualTo("Sheet2");
+            assertThat(workbook.getActiveSheetIndex()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void testActivateWithUnknownSheet() throws Exception {
+        try (XSSFWorkbook workbook = createWorkbook("Sheet1")) {
+            SheetOperationPlan plan = new SheetOperationPlan(workbook);
+            assertThatThrownBy(() -> plan.activate("NAME=Sheet9"))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessage("シートが存在しない");
+        }
+    }
+}